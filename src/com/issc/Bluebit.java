@@ -59,6 +59,9 @@ public final class Bluebit {
     private final static int _REQ_START = 0x9527; // just random number
     public final static int REQ_CHOOSE_DEVICE = _REQ_START + 1;
 
+    // ATT MTU to ask for bulk transfer, 247 fits one LE data packet
+    public final static int MTU_REQUEST = 247;
+
     private Bluebit() {
         // Hide constructor since you should
         // never instantiate me.
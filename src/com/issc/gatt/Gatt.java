@@ -34,6 +34,12 @@ public interface Gatt {
 
     public final static int GATT_SUCCESS = 0;
 
+    /** ATT MTU before negotiation, in bytes. */
+    public final static int MTU_DEFAULT = 23;
+
+    /** Opcode and handle of a write, the payload is MTU minus this. */
+    public final static int WRITE_HEADER = 3;
+
 
     /**
      * Close this Bluetooth Gatt client.
@@ -61,6 +67,19 @@ public interface Gatt {
     public boolean writeCharacteristic(GattCharacteristic chr);
     public boolean writeDescriptor(GattDescriptor dsc);
 
+    /**
+     * Request a larger ATT MTU, the result is reported by
+     * Listener.onMtuChanged.
+     *
+     * @return false if the platform or the device could not do it.
+     */
+    public boolean requestMtu(int mtu);
+
+    /**
+     * @return the negotiated ATT MTU, or MTU_DEFAULT if not negotiated.
+     */
+    public int getMtu();
+
     public interface Listener {
         public void onCharacteristicChanged(Gatt gatt, GattCharacteristic chrc);
         public void onCharacteristicRead(Gatt gatt, GattCharacteristic chrc, int status);
@@ -70,6 +89,7 @@ public interface Gatt {
         public void onDescriptorWrite(Gatt gatt, GattDescriptor descriptor, int status);
         public void onReadRemoteRssi(Gatt gatt, int rssi, int status);
         public void onServicesDiscovered(Gatt gatt, int status);
+        public void onMtuChanged(Gatt gatt, int mtu, int status);
     }
 
     public static class ListenerHelper implements Listener {
@@ -109,6 +129,10 @@ public interface Gatt {
         public void onServicesDiscovered(Gatt gatt, int status) {
             Log.d(String.format("%s, onServicesDiscovered", iTag));
         }
+
+        public void onMtuChanged(Gatt gatt, int mtu, int status) {
+            Log.d(String.format("%s, onMtuChanged, mtu:%d, status:%d", iTag, mtu, status));
+        }
     }
 }
 
@@ -32,6 +32,8 @@ public interface GattCharacteristic {
     public final static int WRITE_TYPE_DEFAULT = 2;
     public final static int WRITE_TYPE_NO_RESPONSE = 1;
 
+    public final static int PROPERTY_READ = 0x02;
+
     public Object getImpl();
 
     public GattService getService();
@@ -43,6 +45,7 @@ public interface GattCharacteristic {
     public UUID getUuid();
     public byte[] getValue();
     public boolean setValue(byte[] value);
+    public int getWriteType();
     public void setWriteType(int writeType);
 }
 
@@ -0,0 +1,306 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.impl;
+
+import com.issc.gatt.Gatt;
+import com.issc.gatt.Gatt.Listener;
+import com.issc.gatt.GattCharacteristic;
+import com.issc.gatt.GattDescriptor;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+
+/**
+ * Run a listener in its own thread, so a slow listener does not hold
+ * the Bluetooth callback thread and other listeners.
+ *
+ * Notifications are bounded by capacity. Once full, a new notification
+ * is dropped, or with POLICY_LATEST it replaces the pending one of the
+ * same characteristic so the listener only sees latest values. Other
+ * callbacks are never dropped since requests wait for them.
+ * Characteristics and descriptors are handed with their values at the
+ * moment of the callback.
+ */
+public class AsyncListener implements Listener {
+
+    /** Drop new notifications once the queue is full. */
+    public final static int POLICY_DROP = 0;
+    /** Keep only the latest pending notification per characteristic. */
+    public final static int POLICY_LATEST = 1;
+
+    private final static int DRAIN = 0x1;
+
+    private final static int CHANGED    = 0;
+    private final static int CHR_READ   = 1;
+    private final static int CHR_WRITE  = 2;
+    private final static int CONNECTION = 3;
+    private final static int DSC_READ   = 4;
+    private final static int DSC_WRITE  = 5;
+    private final static int RSSI       = 6;
+    private final static int DISCOVERED = 7;
+    private final static int MTU        = 8;
+
+    private Listener mTarget;
+    private int mCapacity;
+    private int mPolicy;
+    private Handler mHandler;
+
+    private Object mLock;
+    private ArrayDeque<Event> mEvents;
+    private int mNotifications = 0; // notifications in mEvents
+    /* pending notification of each characteristic by its impl, for
+     * POLICY_LATEST. Wrappers of one characteristic might differ. */
+    private Map<Object, Event> mPending;
+
+    private long mDropped  = 0;
+    private long mReplaced = 0;
+
+    /**
+     * @param capacity how many notifications could wait
+     */
+    public AsyncListener(Listener target, int capacity, int policy) {
+        mTarget   = target;
+        mCapacity = capacity;
+        mPolicy   = policy;
+        mLock     = new Object();
+        mEvents   = new ArrayDeque<Event>();
+        mPending  = new HashMap<Object, Event>();
+
+        HandlerThread thread = new HandlerThread("AsyncListener");
+        thread.start();
+        mHandler = new DrainHandler(thread.getLooper());
+    }
+
+    public Listener getTarget() {
+        return mTarget;
+    }
+
+    /**
+     * Stop the thread, pending callbacks are discarded.
+     */
+    public void close() {
+        synchronized(mLock) {
+            mEvents.clear();
+            mPending.clear();
+            mNotifications = 0;
+        }
+        mHandler.getLooper().quit();
+    }
+
+    /**
+     * @return notifications dropped since the queue was full.
+     */
+    public long getDropped() {
+        synchronized(mLock) {
+            return mDropped;
+        }
+    }
+
+    /**
+     * @return notifications replaced by newer values before delivered.
+     */
+    public long getReplaced() {
+        synchronized(mLock) {
+            return mReplaced;
+        }
+    }
+
+    @Override
+    public void onCharacteristicChanged(Gatt gatt, GattCharacteristic chrc) {
+        synchronized(mLock) {
+            if (mPolicy == POLICY_LATEST) {
+                Event pending = mPending.get(chrc.getImpl());
+                if (pending != null) {
+                    pending.chr.update(chrc.getValue());
+                    mReplaced++;
+                    return;
+                }
+            }
+
+            if (mNotifications >= mCapacity) {
+                mDropped++;
+                return;
+            }
+
+            Event e = new Event(CHANGED, gatt);
+            e.chr = new SnapshotCharacteristic(chrc);
+            if (mPolicy == POLICY_LATEST) {
+                mPending.put(chrc.getImpl(), e);
+            }
+            mNotifications++;
+            enqueue(e);
+        }
+    }
+
+    @Override
+    public void onCharacteristicRead(Gatt gatt, GattCharacteristic chrc, int status) {
+        Event e = new Event(CHR_READ, gatt);
+        e.chr = new SnapshotCharacteristic(chrc);
+        e.status = status;
+        post(e);
+    }
+
+    @Override
+    public void onCharacteristicWrite(Gatt gatt, GattCharacteristic chrc, int status) {
+        Event e = new Event(CHR_WRITE, gatt);
+        e.chr = new SnapshotCharacteristic(chrc);
+        e.status = status;
+        post(e);
+    }
+
+    @Override
+    public void onConnectionStateChange(Gatt gatt, int status, int newState) {
+        Event e = new Event(CONNECTION, gatt);
+        e.status = status;
+        e.arg = newState;
+        post(e);
+    }
+
+    @Override
+    public void onDescriptorRead(Gatt gatt, GattDescriptor descriptor, int status) {
+        Event e = new Event(DSC_READ, gatt);
+        e.dsc = new SnapshotDescriptor(descriptor);
+        e.status = status;
+        post(e);
+    }
+
+    @Override
+    public void onDescriptorWrite(Gatt gatt, GattDescriptor descriptor, int status) {
+        Event e = new Event(DSC_WRITE, gatt);
+        e.dsc = new SnapshotDescriptor(descriptor);
+        e.status = status;
+        post(e);
+    }
+
+    @Override
+    public void onReadRemoteRssi(Gatt gatt, int rssi, int status) {
+        Event e = new Event(RSSI, gatt);
+        e.arg = rssi;
+        e.status = status;
+        post(e);
+    }
+
+    @Override
+    public void onServicesDiscovered(Gatt gatt, int status) {
+        Event e = new Event(DISCOVERED, gatt);
+        e.status = status;
+        post(e);
+    }
+
+    @Override
+    public void onMtuChanged(Gatt gatt, int mtu, int status) {
+        Event e = new Event(MTU, gatt);
+        e.arg = mtu;
+        e.status = status;
+        post(e);
+    }
+
+    private void post(Event e) {
+        synchronized(mLock) {
+            enqueue(e);
+        }
+    }
+
+    /* should be called with mLock held */
+    private void enqueue(Event e) {
+        mEvents.addLast(e);
+        if (mEvents.size() == 1) {
+            mHandler.sendEmptyMessage(DRAIN);
+        }
+    }
+
+    /* runs in own thread, deliver events out of lock */
+    private void drain() {
+        while (true) {
+            Event e;
+            synchronized(mLock) {
+                e = mEvents.peekFirst();
+                if (e == null) {
+                    return;
+                }
+                if (e.type == CHANGED) {
+                    // value could not be replaced any longer
+                    mPending.remove(e.chr.getImpl());
+                }
+            }
+
+            deliver(e);
+
+            synchronized(mLock) {
+                // still at head, enqueue() only adds to tail
+                mEvents.pollFirst();
+                if (e.type == CHANGED) {
+                    mNotifications--;
+                }
+            }
+        }
+    }
+
+    private void deliver(Event e) {
+        if (e.type == CHANGED) {
+            mTarget.onCharacteristicChanged(e.gatt, e.chr);
+        } else if (e.type == CHR_READ) {
+            mTarget.onCharacteristicRead(e.gatt, e.chr, e.status);
+        } else if (e.type == CHR_WRITE) {
+            mTarget.onCharacteristicWrite(e.gatt, e.chr, e.status);
+        } else if (e.type == CONNECTION) {
+            mTarget.onConnectionStateChange(e.gatt, e.status, e.arg);
+        } else if (e.type == DSC_READ) {
+            mTarget.onDescriptorRead(e.gatt, e.dsc, e.status);
+        } else if (e.type == DSC_WRITE) {
+            mTarget.onDescriptorWrite(e.gatt, e.dsc, e.status);
+        } else if (e.type == RSSI) {
+            mTarget.onReadRemoteRssi(e.gatt, e.arg, e.status);
+        } else if (e.type == DISCOVERED) {
+            mTarget.onServicesDiscovered(e.gatt, e.status);
+        } else if (e.type == MTU) {
+            mTarget.onMtuChanged(e.gatt, e.arg, e.status);
+        }
+    }
+
+    static class Event {
+        int type;
+        Gatt gatt;
+        SnapshotCharacteristic chr;
+        SnapshotDescriptor dsc;
+        int status;
+        int arg;
+
+        Event(int t, Gatt g) {
+            type = t;
+            gatt = g;
+        }
+    }
+
+    class DrainHandler extends Handler {
+        DrainHandler(Looper looper) {
+            super(looper);
+        }
+
+        public void handleMessage(Message msg) {
+            if (msg.what == DRAIN) {
+                drain();
+            }
+        }
+    }
+}
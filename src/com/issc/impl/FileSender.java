@@ -0,0 +1,328 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.impl;
+
+import com.issc.gatt.GattCharacteristic;
+import com.issc.util.Log;
+import com.issc.util.TransactionQueue;
+import com.issc.util.TransactionQueue.Transaction;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+
+/**
+ * Send a file to a characteristic packet by packet.
+ *
+ * Only a few packets of the file are read ahead. Each packet has its own
+ * slot of a fixed buffer, and a slot is filled again once its packet is
+ * done. So memory usage does not depend on the size of file.
+ *
+ * The owner of TransactionQueue should pass finished transactions to
+ * {@link #onDone}, including the ones given up by the queue.
+ */
+public class FileSender {
+
+    private final static int REFILL = 0x1;
+
+    private TransactionQueue mQueue;
+    private FileInputStream mStream;
+    private FileChannel mChannel;
+    private Handler mHandler;
+    private Listener mListener;
+
+    /* each slot holds one packet, and the transaction to send it */
+    private byte[] mBuf;
+    private ByteBuffer[] mViews;
+    private GattTransaction[] mSlots;
+
+    /* slots which could be filled, and the ones taken to fill */
+    private int[] mFree;
+    private int mFreeCount;
+    private int[] mTaken;
+
+    private long mTotal;
+    private long mSent   = 0;
+    private long mFailed = 0;
+    private int  mPercent = -1;
+
+    private boolean mEof       = false;
+    private boolean mCancelled = false;
+    private boolean mFinished  = false;
+
+    /**
+     * @param payload bytes of one packet
+     * @param slots how many packets could be read ahead
+     */
+    public FileSender(TransactionQueue queue,
+            GattCharacteristic chr,
+            String path,
+            int payload,
+            int slots) throws IOException {
+
+        mQueue   = queue;
+        mStream  = new FileInputStream(path);
+        mChannel = mStream.getChannel();
+        mTotal   = mChannel.size();
+
+        mBuf   = new byte[payload * slots];
+        mViews = new ByteBuffer[slots];
+        mSlots = new GattTransaction[slots];
+        mFree  = new int[slots];
+        mTaken = new int[slots];
+        for (int i = 0; i < slots; i++) {
+            mViews[i] = ByteBuffer.wrap(mBuf, i * payload, payload).slice();
+            mSlots[i] = new GattTransaction(chr, mBuf, i * payload, 0);
+            mSlots[i].priority = Transaction.PRIORITY_BULK;
+            mFree[i] = i;
+        }
+        mFreeCount = slots;
+
+        HandlerThread thread = new HandlerThread("FileSender");
+        thread.start();
+        mHandler = new SenderHandler(thread.getLooper());
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Should be set before starting.
+     */
+    public void setWriteType(int type) {
+        for (int i = 0; i < mSlots.length; i++) {
+            mSlots[i].writeType = type;
+        }
+    }
+
+    public long getTotal() {
+        return mTotal;
+    }
+
+    public synchronized long getSent() {
+        return mSent;
+    }
+
+    public synchronized boolean isFinished() {
+        return mFinished;
+    }
+
+    public void start() {
+        mHandler.sendEmptyMessage(REFILL);
+    }
+
+    /**
+     * Stop sending. Packets which are still in queue will be dropped by
+     * the queue, since their deadline is passed.
+     */
+    public void cancel() {
+        synchronized(this) {
+            if (mFinished) {
+                return;
+            }
+            mCancelled = true;
+            for (int i = 0; i < mSlots.length; i++) {
+                mSlots[i].deadline = 0;
+            }
+        }
+        closeChannel();
+        finish();
+    }
+
+    /**
+     * Call this once a transaction is done, no matter it is success or not.
+     *
+     * @return false if the transaction was not sent by this sender.
+     */
+    public boolean onDone(Transaction t, boolean success) {
+        int slot = indexOf(t);
+        if (slot < 0) {
+            return false;
+        }
+
+        boolean progress;
+        boolean finished;
+        long done;
+        synchronized(this) {
+            if (mFinished) {
+                return true;
+            }
+
+            mFree[mFreeCount++] = slot;
+            if (success) {
+                mSent += mSlots[slot].length;
+            } else {
+                mFailed += mSlots[slot].length;
+            }
+
+            done = mSent + mFailed;
+            int percent = (mTotal == 0) ? 100 : (int)(done * 100 / mTotal);
+            progress = (percent != mPercent);
+            mPercent = percent;
+
+            finished = mEof && (mFreeCount == mSlots.length);
+            if (!mEof && mFreeCount * 2 >= mSlots.length
+                    && !mHandler.hasMessages(REFILL)) {
+                // refill in batch, rather than per packet
+                mHandler.sendEmptyMessage(REFILL);
+            }
+        }
+
+        if (progress && mListener != null) {
+            mListener.onProgress(done, mTotal);
+        }
+        if (finished) {
+            finish();
+        }
+        return true;
+    }
+
+    private int indexOf(Transaction t) {
+        for (int i = 0; i < mSlots.length; i++) {
+            if (mSlots[i] == t) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /* read free slots and send them, runs in sender thread */
+    private void refill() {
+        int count;
+        synchronized(this) {
+            if (mCancelled || mEof) {
+                return;
+            }
+            count = mFreeCount;
+            System.arraycopy(mFree, 0, mTaken, 0, count);
+            mFreeCount = 0;
+        }
+
+        int used = 0;
+        boolean eof = false;
+        try {
+            for (; used < count; used++) {
+                int slot = mTaken[used];
+                int length = readSlot(slot);
+                if (length == 0) {
+                    eof = true;
+                    break;
+                }
+
+                synchronized(this) {
+                    if (mCancelled) {
+                        return;
+                    }
+                    GattTransaction t = mSlots[slot];
+                    t.length   = length;
+                    t.deadline = Transaction.DEADLINE_NONE;
+                    mQueue.add(t);
+                }
+            }
+        } catch (IOException e) {
+            // treat as the end of file, unsent bytes are lost
+            Log.e("reading file failed: " + e.getMessage());
+            eof = true;
+        }
+
+        boolean finished = false;
+        synchronized(this) {
+            // return the slots which have nothing to send
+            for (int i = used; i < count; i++) {
+                mFree[mFreeCount++] = mTaken[i];
+            }
+
+            if (eof) {
+                mEof = true;
+                finished = (mFreeCount == mSlots.length);
+            }
+        }
+
+        if (eof) {
+            closeChannel();
+        }
+        if (finished) {
+            finish();
+        }
+    }
+
+    /* return how many bytes were read, 0 if end of file */
+    private int readSlot(int slot) throws IOException {
+        ByteBuffer view = mViews[slot];
+        view.clear();
+        while (view.hasRemaining()) {
+            if (mChannel.read(view) < 0) {
+                break;
+            }
+        }
+        return view.position();
+    }
+
+    private void closeChannel() {
+        try {
+            mStream.close();
+        } catch (IOException e) {
+            Log.w("closing file failed: " + e.getMessage());
+        }
+    }
+
+    private void finish() {
+        long sent;
+        long failed;
+        synchronized(this) {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            sent   = mSent;
+            failed = mFailed;
+        }
+
+        mHandler.getLooper().quit();
+        if (mListener != null) {
+            mListener.onFinished(sent, failed, mCancelled);
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called when one more percent of the file is done.
+         */
+        public void onProgress(long done, long total);
+
+        public void onFinished(long sent, long failed, boolean cancelled);
+    }
+
+    class SenderHandler extends Handler {
+        SenderHandler(Looper looper) {
+            super(looper);
+        }
+
+        public void handleMessage(Message msg) {
+            if (msg.what == REFILL) {
+                refill();
+            }
+        }
+    }
+}
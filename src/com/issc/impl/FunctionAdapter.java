@@ -21,7 +21,12 @@ import com.issc.R;
 import com.issc.util.UuidMatcher;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import android.content.Context;
@@ -42,39 +47,90 @@ public class FunctionAdapter extends BaseAdapter {
 
     private ArrayList<UuidMatcher> mOptions;
     private ArrayList<UuidMatcher> mResults;
-    private ArrayList<UUID> mUuids;
+    private Set<UUID> mUuids;
+
+    /* rule UUID to positions of options which need it */
+    private Map<UUID, List<Integer>> mIndex;
+    /* rules of each option which are not found yet, matched at 0 */
+    private int[] mRemaining;
 
     public FunctionAdapter(Context context) {
         super();
         mContext = context;
         mOptions  = new ArrayList<UuidMatcher>();
         mResults  = new ArrayList<UuidMatcher>();
-        mUuids    = new ArrayList<UUID>();
+        mUuids    = new HashSet<UUID>();
+        mIndex    = new HashMap<UUID, List<Integer>>();
         mInflater = LayoutInflater.from(mContext);
 
-        initOptions(mOptions);
+        initOptions();
+        mRemaining = new int[mOptions.size()];
+        resetMatches();
     }
 
-    public void addUuidInUiThread(UUID uuid) {
-        if (mUuids.contains(uuid)) {
-            return;
+    /**
+     * Add UUIDs of a discovery, the list is updated once for all of them.
+     */
+    public void addUuidsInUiThread(List<UUID> uuids) {
+        boolean changed = false;
+        for (int i = 0; i < uuids.size(); i++) {
+            changed |= match(uuids.get(i));
+        }
+        if (changed) {
+            updateDataSet();
         }
+    }
 
-        mUuids.add(uuid);
+    /**
+     * Replace every UUID, such as the ones from a stale attribute table.
+     */
+    public void setUuidsInUiThread(List<UUID> uuids) {
+        resetMatches();
+        for (int i = 0; i < uuids.size(); i++) {
+            match(uuids.get(i));
+        }
         updateDataSet();
     }
 
+    /* @return true if any option is matched by this UUID */
+    private boolean match(UUID uuid) {
+        if (!mUuids.add(uuid)) {
+            return false;
+        }
+
+        List<Integer> positions = mIndex.get(uuid);
+        if (positions == null) {
+            return false;
+        }
+
+        boolean matched = false;
+        for (int i = 0; i < positions.size(); i++) {
+            int pos = positions.get(i);
+            if (--mRemaining[pos] == 0) {
+                matched = true;
+            }
+        }
+        return matched;
+    }
+
+    private void resetMatches() {
+        mUuids.clear();
+        Arrays.fill(mRemaining, 0);
+        for (List<Integer> positions: mIndex.values()) {
+            for (int i = 0; i < positions.size(); i++) {
+                mRemaining[positions.get(i)]++;
+            }
+        }
+    }
+
     private void updateDataSet() {
         mResults.clear();
-        notifyDataSetChanged();
-        Iterator<UuidMatcher> it = mOptions.iterator();
-        while (it.hasNext()) {
-            UuidMatcher target = it.next();
-            if (target.isEnclosedBy(mUuids)) {
-                mResults.add(target);
-                notifyDataSetChanged();
+        for (int i = 0; i < mOptions.size(); i++) {
+            if (mRemaining[i] == 0) {
+                mResults.add(mOptions.get(i));
             }
         }
+        notifyDataSetChanged();
     }
 
     @Override
@@ -112,43 +168,49 @@ public class FunctionAdapter extends BaseAdapter {
         return target.createIntent();
     }
 
-    private void initOptions(ArrayList<UuidMatcher> options) {
-        addLighting(options);
-        addTransparent(options);
-        addKeyboard(options);
+    private void initOptions() {
+        addLighting();
+        addTransparent();
+        addKeyboard();
     }
 
-    private void addLighting(ArrayList<UuidMatcher> options) {
-        UuidMatcher matcher = new UuidMatcher();
-        matcher.setTarget("com.issc", "com.issc.ui.ActivityAIO");
-        for (int i = 0; i < Bluebit.UUIDS_OF_LIGHTING.length; i++) {
-            matcher.addRule(Bluebit.UUIDS_OF_LIGHTING[i]);
+    /* rules are indexed, so each UUID only touches options need it */
+    private void addOption(UuidMatcher matcher, UUID[] rules) {
+        int pos = mOptions.size();
+        for (int i = 0; i < rules.length; i++) {
+            if (!matcher.addRule(rules[i])) {
+                continue;
+            }
+
+            List<Integer> positions = mIndex.get(rules[i]);
+            if (positions == null) {
+                positions = new ArrayList<Integer>();
+                mIndex.put(rules[i], positions);
+            }
+            positions.add(pos);
         }
+        mOptions.add(matcher);
+    }
 
+    private void addLighting() {
+        UuidMatcher matcher = new UuidMatcher();
+        matcher.setTarget("com.issc", "com.issc.ui.ActivityAIO");
         matcher.setInfo(mContext.getString(R.string.func_light),
                 mContext.getString(R.string.func_light_desc));
-        options.add(matcher);
+        addOption(matcher, Bluebit.UUIDS_OF_LIGHTING);
     }
 
-    private void addTransparent(ArrayList<UuidMatcher> options) {
+    private void addTransparent() {
         UuidMatcher matcher = new UuidMatcher();
         matcher.setTarget("com.issc", "com.issc.ui.ActivityTransparent");
-        for (int i = 0; i < Bluebit.UUIDS_OF_TRANSPARENT.length; i++) {
-            matcher.addRule(Bluebit.UUIDS_OF_TRANSPARENT[i]);
-        }
-
         matcher.setInfo("Transparent", "Transfer data to device");
-        options.add(matcher);
+        addOption(matcher, Bluebit.UUIDS_OF_TRANSPARENT);
     }
 
-    private void addKeyboard(ArrayList<UuidMatcher> options) {
+    private void addKeyboard() {
         UuidMatcher matcher = new UuidMatcher();
         matcher.setTarget("com.issc", "com.issc.ui.ActivityKeyboard");
-        for (int i = 0; i < Bluebit.UUIDS_OF_TRANSPARENT.length; i++) {
-            matcher.addRule(Bluebit.UUIDS_OF_TRANSPARENT[i]);
-        }
-
         matcher.setInfo("Keyboard", "Send Key event to device");
-        options.add(matcher);
+        addOption(matcher, Bluebit.UUIDS_OF_TRANSPARENT);
     }
 }
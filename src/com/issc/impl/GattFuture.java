@@ -0,0 +1,329 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.impl;
+
+import com.issc.gatt.Gatt;
+import com.issc.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/**
+ * Result of a GATT request which will be known later.
+ *
+ * Callbacks run in the thread which completes the future, usually the
+ * Bluetooth callback thread, so they should be short. Operations could be
+ * chained by {@link #then}, and a batch could be waited by {@link #all}.
+ * Cancelling only completes the future, the request might still be made.
+ */
+public class GattFuture<T> implements Future<T> {
+
+    /** The request failed after all retries. */
+    public final static int STATUS_GIVEN_UP  = -1;
+    /** No response in time, see {@link #setTimeout}. */
+    public final static int STATUS_TIMEOUT   = -2;
+    /** The request could not be queued, such as no connection. */
+    public final static int STATUS_REFUSED   = -3;
+    /** A chained operation threw. */
+    public final static int STATUS_ERROR     = -4;
+    public final static int STATUS_CANCELLED = -5;
+
+    /* shared by every future to fire timeouts */
+    private static Handler sTimer;
+
+    private Object mLock;
+    private boolean mDone = false;
+    private T mValue;
+    private int mStatus = Gatt.GATT_SUCCESS;
+    private List<Callback<T>> mCallbacks;
+
+    public GattFuture() {
+        mLock = new Object();
+        mCallbacks = new ArrayList<Callback<T>>();
+    }
+
+    /**
+     * @return a future which is done already.
+     */
+    public static <T> GattFuture<T> completed(T value) {
+        GattFuture<T> future = new GattFuture<T>();
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * @return false if it was done already.
+     */
+    public boolean complete(T value) {
+        return finish(value, Gatt.GATT_SUCCESS);
+    }
+
+    /**
+     * @param status GATT status, or one of STATUS_*
+     * @return false if it was done already.
+     */
+    public boolean fail(int status) {
+        return finish(null, status);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, STATUS_CANCELLED);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        synchronized(mLock) {
+            return mDone && mStatus == STATUS_CANCELLED;
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        synchronized(mLock) {
+            return mDone;
+        }
+    }
+
+    public boolean isSuccess() {
+        synchronized(mLock) {
+            return mDone && mStatus == Gatt.GATT_SUCCESS;
+        }
+    }
+
+    /**
+     * @return GATT_SUCCESS if it is not done yet.
+     */
+    public int getStatus() {
+        synchronized(mLock) {
+            return mStatus;
+        }
+    }
+
+    /**
+     * @return the value, or null if it is not done or failed.
+     */
+    public T getNow() {
+        synchronized(mLock) {
+            return mValue;
+        }
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        synchronized(mLock) {
+            while (!mDone) {
+                mLock.wait();
+            }
+            return result();
+        }
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+
+        long until = System.nanoTime() + unit.toNanos(timeout);
+        synchronized(mLock) {
+            while (!mDone) {
+                long left = until - System.nanoTime();
+                if (left <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(mLock, left);
+            }
+            return result();
+        }
+    }
+
+    /**
+     * Fail with STATUS_TIMEOUT if it is not done in time.
+     *
+     * @return this future, for chaining.
+     */
+    public GattFuture<T> setTimeout(long ms) {
+        timer().postDelayed(new Runnable() {
+            public void run() {
+                fail(STATUS_TIMEOUT);
+            }
+        }, ms);
+        return this;
+    }
+
+    /**
+     * Run the callback once done, or right now if it is done already.
+     */
+    public void addCallback(Callback<T> callback) {
+        synchronized(mLock) {
+            if (!mDone) {
+                mCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.onDone(this);
+    }
+
+    /**
+     * Start the next operation once this one succeeds.
+     *
+     * @return a future of the next operation. It fails with the same
+     *         status if this one or the chain fails.
+     */
+    public <U> GattFuture<U> then(final Chain<T, U> chain) {
+        final GattFuture<U> result = new GattFuture<U>();
+        addCallback(new Callback<T>() {
+            public void onDone(GattFuture<T> done) {
+                if (!done.isSuccess()) {
+                    result.fail(done.getStatus());
+                    return;
+                }
+
+                GattFuture<U> next;
+                try {
+                    next = chain.next(done.getNow());
+                } catch (RuntimeException e) {
+                    Log.e("chained operation threw: " + e);
+                    result.fail(STATUS_ERROR);
+                    return;
+                }
+
+                if (next == null) {
+                    result.complete(null);
+                } else {
+                    next.addCallback(new Relay<U>(result));
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return a future which is done once every future is done. It fails
+     *         with status of the first failed one, otherwise values are in
+     *         the same order.
+     */
+    public static <T> GattFuture<List<T>> all(final List<GattFuture<T>> futures) {
+        final GattFuture<List<T>> result = new GattFuture<List<T>>();
+        if (futures.isEmpty()) {
+            result.complete(new ArrayList<T>());
+            return result;
+        }
+
+        final int[] left = {futures.size()};
+        Callback<T> counter = new Callback<T>() {
+            public void onDone(GattFuture<T> done) {
+                if (!done.isSuccess()) {
+                    result.fail(done.getStatus());
+                    return;
+                }
+                synchronized(left) {
+                    if (--left[0] > 0) {
+                        return;
+                    }
+                }
+
+                List<T> values = new ArrayList<T>(futures.size());
+                for (GattFuture<T> f: futures) {
+                    values.add(f.getNow());
+                }
+                result.complete(values);
+            }
+        };
+
+        for (GattFuture<T> f: futures) {
+            f.addCallback(counter);
+        }
+        return result;
+    }
+
+    /* should be called with mLock held */
+    private T result() throws ExecutionException {
+        if (mStatus == STATUS_CANCELLED) {
+            throw new CancellationException();
+        } else if (mStatus != Gatt.GATT_SUCCESS) {
+            throw new ExecutionException(new IOException("GATT status " + mStatus));
+        }
+        return mValue;
+    }
+
+    private boolean finish(T value, int status) {
+        List<Callback<T>> callbacks;
+        synchronized(mLock) {
+            if (mDone) {
+                return false;
+            }
+            mDone   = true;
+            mValue  = value;
+            mStatus = status;
+            mLock.notifyAll();
+            callbacks = new ArrayList<Callback<T>>(mCallbacks);
+            mCallbacks.clear();
+        }
+
+        for (Callback<T> callback: callbacks) {
+            callback.onDone(this);
+        }
+        return true;
+    }
+
+    private static synchronized Handler timer() {
+        if (sTimer == null) {
+            HandlerThread thread = new HandlerThread("GattFuture");
+            thread.start();
+            sTimer = new Handler(thread.getLooper());
+        }
+        return sTimer;
+    }
+
+    /* pass result of a future to another one */
+    static class Relay<T> implements Callback<T> {
+        private GattFuture<T> mTarget;
+
+        Relay(GattFuture<T> target) {
+            mTarget = target;
+        }
+
+        public void onDone(GattFuture<T> done) {
+            if (done.isSuccess()) {
+                mTarget.complete(done.getNow());
+            } else {
+                mTarget.fail(done.getStatus());
+            }
+        }
+    }
+
+    public interface Callback<T> {
+        public void onDone(GattFuture<T> future);
+    }
+
+    public interface Chain<T, U> {
+        /**
+         * @param value result of the previous operation
+         * @return the next operation, or null to finish with null.
+         */
+        public GattFuture<U> next(T value);
+    }
+}
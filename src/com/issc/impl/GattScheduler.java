@@ -0,0 +1,571 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.impl;
+
+import com.issc.gatt.Gatt;
+import com.issc.gatt.GattCharacteristic;
+import com.issc.gatt.GattDescriptor;
+import com.issc.util.Log;
+import com.issc.util.TransactionQueue;
+import com.issc.util.TransactionQueue.Transaction;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+/**
+ * Serialize GATT requests of one connection.
+ *
+ * A link takes one request at a time. The platform refuses another one
+ * until the previous one is called back, even for Write-Without-Response,
+ * so pipelined writes only wait here ready to go. Each client of the
+ * connection owns a TransactionQueue here, which keeps its own priorities,
+ * coalescing and retries. The scheduler takes ready transactions from clients in turn, so
+ * a bulk transfer of one client does not hold the link from others.
+ * Requests made to LeService directly go through an internal client, and
+ * futures of them are completed once the link responds or gives up.
+ * Concurrent reads of one attribute are collapsed into a single request.
+ *
+ * A request which its queue stops waiting for, such as no response in
+ * time, leaves the link at once so others are not blocked by a lost
+ * response. It is kept as a tombstone, so a response of it which comes
+ * later is dropped rather than taken as the response of the next request
+ * to the same attribute. The link responds in order, therefore tombstones
+ * older than a response are dropped too, and none is kept longer than the
+ * ATT transaction timeout.
+ *
+ * Queues belong to the scheduler rather than to an activity, therefore
+ * they keep going while an activity is recreated. A client gets its queue
+ * back by the same name.
+ */
+public class GattScheduler {
+
+    /** Name of the client for requests made to LeService directly. */
+    public final static String CLIENT_DIRECT = "direct";
+
+    private final static int PUMP = 0x1;
+
+    /* ATT transaction timeout, no response comes later than it */
+    private final static long LATE_MAX = 30000;
+
+    private Gatt mGatt;
+    private Handler mHandler;
+    private Client mDirect;
+
+    /* following fields are guarded by mLock */
+    private Object mLock;
+    private List<Client> mClients;
+    private int mTurn = 0;
+    /* requests on the link, oldest first */
+    private ArrayDeque<Issued> mIssued;
+    /* direct transactions having a future, to fail them once closed */
+    private Set<GattTransaction> mWaiting;
+    /* attribute -> the read of it which is not responded yet */
+    /* pending read of each attribute, by impl */
+    private Map<Object, GattTransaction> mReads;
+    private long mCollapsed = 0;
+    private boolean mClosed = false;
+
+    public GattScheduler(Gatt gatt) {
+        mGatt    = gatt;
+        mLock    = new Object();
+        mClients = new ArrayList<Client>();
+        mIssued  = new ArrayDeque<Issued>();
+        mWaiting = new HashSet<GattTransaction>();
+        mReads   = new HashMap<Object, GattTransaction>();
+
+        HandlerThread thread = new HandlerThread("GattScheduler");
+        thread.start();
+        mHandler = new PumpHandler(thread.getLooper());
+
+        mDirect = new Client(CLIENT_DIRECT);
+        mDirect.queue.setGiveUpListener(new TransactionQueue.GiveUpListener() {
+            public void onGiveUp(Transaction t) {
+                GattTransaction trans = (GattTransaction)t;
+                if (trans.future != null) {
+                    synchronized(mLock) {
+                        mWaiting.remove(trans);
+                    }
+                    trans.future.fail(GattFuture.STATUS_GIVEN_UP);
+                }
+            }
+        });
+        mClients.add(mDirect);
+    }
+
+    /**
+     * Get the queue of a client, it is created if the client is new.
+     *
+     * The queue should not be destroyed by client, call {@link #release}
+     * instead.
+     */
+    public TransactionQueue getQueue(String client) {
+        synchronized(mLock) {
+            Client c = find(client);
+            if (c == null) {
+                c = new Client(client);
+                mClients.add(c);
+            }
+            return c.queue;
+        }
+    }
+
+    /**
+     * Set a listener to know which transaction of the client is done.
+     * There is at most one listener for each client, null to remove it.
+     */
+    public void setListener(String client, Listener listener) {
+        synchronized(mLock) {
+            Client c = find(client);
+            if (c != null) {
+                c.listener = listener;
+            }
+        }
+    }
+
+    /**
+     * Destroy queue of the client, its pending transactions are dropped.
+     */
+    public void release(String client) {
+        Client c;
+        synchronized(mLock) {
+            c = find(client);
+            if (c == null || c == mDirect) {
+                return;
+            }
+            mClients.remove(c);
+            c.ready.clear();
+        }
+        c.queue.destroy();
+    }
+
+    /**
+     * Destroy every queue, should be called once the connection is closed.
+     */
+    public void close() {
+        List<Client> clients;
+        List<GattTransaction> waiting;
+        synchronized(mLock) {
+            mClosed = true;
+            clients = new ArrayList<Client>(mClients);
+            mClients.clear();
+            mIssued.clear();
+            waiting = new ArrayList<GattTransaction>(mWaiting);
+            mWaiting.clear();
+        }
+
+        for (Client c: clients) {
+            c.queue.destroy();
+        }
+        for (GattTransaction t: waiting) {
+            t.future.fail(GattFuture.STATUS_GIVEN_UP);
+        }
+        mHandler.getLooper().quit();
+    }
+
+    /* request from LeService, it always succeeds unless closed. Priority
+     * is decided by caller */
+    boolean submit(GattTransaction t) {
+        synchronized(mLock) {
+            if (mClosed) {
+                return false;
+            }
+            if (t.future != null) {
+                mWaiting.add(t);
+            }
+        }
+        mDirect.queue.add(t);
+        return true;
+    }
+
+    /**
+     * @return reads which shared the response of another one.
+     */
+    public long getCollapsedCount() {
+        synchronized(mLock) {
+            return mCollapsed;
+        }
+    }
+
+    /* Read by the internal client. If a read of the same attribute is still
+     * queued or in flight, at the same or higher priority, the caller shares
+     * its response instead of making another request. A less urgent one is
+     * not joined, otherwise a control read could wait behind bulk traffic. */
+    GattFuture<byte[]> read(final GattTransaction t) {
+        final Object key = t.isForCharacteristic() ? t.chr.getImpl() : t.desc.getImpl();
+        final GattFuture<byte[]> shared;
+        boolean first = false;
+        synchronized(mLock) {
+            GattTransaction pending = mReads.get(key);
+            if (pending != null && pending.priority <= t.priority) {
+                shared = pending.future;
+                mCollapsed++;
+            } else {
+                // later reads join this one rather than the less urgent one
+                shared = new GattFuture<byte[]>();
+                t.future = shared;
+                mReads.put(key, t);
+                first = true;
+            }
+        }
+
+        if (first) {
+            shared.addCallback(new GattFuture.Callback<byte[]>() {
+                public void onDone(GattFuture<byte[]> done) {
+                    synchronized(mLock) {
+                        if (mReads.get(key) == t) {
+                            mReads.remove(key);
+                        }
+                    }
+                }
+            });
+            if (!submit(t)) {
+                shared.fail(GattFuture.STATUS_REFUSED);
+            }
+        }
+
+        // each reader gets its own future and copy of value, so cancelling
+        // or changing them does not bother others
+        final GattFuture<byte[]> mine = new GattFuture<byte[]>();
+        shared.addCallback(new GattFuture.Callback<byte[]>() {
+            public void onDone(GattFuture<byte[]> done) {
+                if (done.isSuccess()) {
+                    byte[] value = done.getNow();
+                    mine.complete((value == null) ? null : value.clone());
+                } else {
+                    mine.fail(done.getStatus());
+                }
+            }
+        });
+        return mine;
+    }
+
+    void onCharacteristicResult(GattCharacteristic chr, boolean write, int status) {
+        onResult(chr.getImpl(), true, write, status, chr.getValue());
+    }
+
+    void onDescriptorResult(GattDescriptor dsc, boolean write, int status) {
+        onResult(dsc.getImpl(), false, write, status, dsc.getValue());
+    }
+
+    void onMtuResult(int status) {
+        // a null impl only matches the MTU exchange
+        onResult(null, false, false, status, null);
+    }
+
+    private void onResult(Object impl,
+            boolean isChr,
+            boolean write,
+            int status,
+            byte[] value) {
+
+        Issued done = null;
+        synchronized(mLock) {
+            long now = SystemClock.uptimeMillis();
+            Iterator<Issued> it = mIssued.iterator();
+            while (it.hasNext()) {
+                Issued i = it.next();
+                if (i.lost && now - i.issuedAt > LATE_MAX) {
+                    it.remove();
+                } else if (i.matches(impl, isChr, write)) {
+                    it.remove();
+                    done = i;
+                    break;
+                }
+            }
+
+            if (done != null && !done.lost) {
+                // responses come in order, older tombstones get none
+                it = mIssued.iterator();
+                while (it.hasNext() && it.next().lost) {
+                    it.remove();
+                }
+            }
+
+            if (done == null || done.lost || !mClients.contains(done.client)) {
+                // not requested by this scheduler, timed out already, or
+                // client was released
+                return;
+            }
+            if (status == Gatt.GATT_SUCCESS) {
+                mWaiting.remove(done.t);
+            }
+        }
+
+        if (status == Gatt.GATT_SUCCESS) {
+            done.client.queue.onConsumed(done.t);
+            if (done.t.future != null) {
+                // the value will be overwritten by next request
+                done.t.future.complete((value == null) ? null : value.clone());
+            }
+        } else {
+            // future fails only if the queue gives up
+            done.client.queue.onFailed(done.t);
+        }
+
+        Listener listener = done.client.listener;
+        if (listener != null) {
+            listener.onTransacted(done.t, status);
+        }
+        requestPump();
+    }
+
+    /* should be called with mLock held */
+    private Client find(String name) {
+        for (Client c: mClients) {
+            if (c.name.equals(name)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /* should be called with mLock held */
+    private boolean isIssued(GattTransaction t) {
+        for (Issued i: mIssued) {
+            if (i.t == t && !i.lost) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* should be called with mLock held */
+    private boolean canIssue(GattTransaction t) {
+        // the platform takes one at a time, next one goes once the
+        // previous one is called back or given up
+        for (Issued i: mIssued) {
+            if (!i.lost) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* The next client having a ready transaction takes the turn. If the link
+     * could not take it yet, others wait too, otherwise pipelined writes
+     * could keep a request out forever.
+     * Should be called with mLock held */
+    private Issued pick() {
+        int n = mClients.size();
+        for (int i = 0; i < n; i++) {
+            Client c = mClients.get((mTurn + i) % n);
+            GattTransaction t = c.ready.peekFirst();
+            while (t != null && !c.queue.isInFlight(t)) {
+                // cleared or given up while waiting
+                c.ready.pollFirst();
+                t = c.ready.peekFirst();
+            }
+
+            if (t == null) {
+                continue;
+            } else if (!canIssue(t)) {
+                mTurn = (mTurn + i) % n;
+                return null;
+            }
+
+            c.ready.pollFirst();
+            mTurn = (mTurn + i + 1) % n;
+            return new Issued(c, t);
+        }
+        return null;
+    }
+
+    /* the queue of client does not wait for it any more */
+    private void onTimeout(Client c, GattTransaction t) {
+        synchronized(mLock) {
+            Iterator<Issued> it = mIssued.iterator();
+            while (it.hasNext()) {
+                Issued i = it.next();
+                if (i.client == c && i.t == t && !i.lost) {
+                    // keep it to drop the late response
+                    i.lost = true;
+                    Log.w("request leaves the link without response");
+                    break;
+                }
+            }
+            if (mClosed) {
+                return;
+            }
+        }
+        requestPump();
+    }
+
+    private void requestPump() {
+        if (!mHandler.hasMessages(PUMP)) {
+            mHandler.sendEmptyMessage(PUMP);
+        }
+    }
+
+    /* runs in own thread, so only one request is made at a time */
+    private void pump() {
+        while (true) {
+            Issued next;
+            synchronized(mLock) {
+                next = mClosed ? null : pick();
+                if (next == null) {
+                    return;
+                }
+                mIssued.addLast(next);
+            }
+
+            if (!issue(next)) {
+                Log.w("request was refused");
+                synchronized(mLock) {
+                    mIssued.remove(next);
+                }
+                if (next.t.isForMtu()) {
+                    // not supported by this platform, trying again is useless
+                    refuse(next);
+                } else {
+                    next.client.queue.onFailed(next.t);
+                }
+            }
+        }
+    }
+
+    private void refuse(Issued i) {
+        synchronized(mLock) {
+            mWaiting.remove(i.t);
+        }
+        i.client.queue.onConsumed(i.t);
+        if (i.t.future != null) {
+            i.t.future.fail(GattFuture.STATUS_REFUSED);
+        }
+    }
+
+    private boolean issue(Issued i) {
+        GattTransaction t = i.t;
+        if (t.isForMtu()) {
+            return mGatt.requestMtu(t.mtu);
+        }
+
+        byte[] payload = t.getPayload(i.client.scratch);
+        if (payload != t.value) {
+            // the stack copies value while requesting, reuse it next time
+            i.client.scratch = payload;
+        }
+
+        t.sentAt = System.nanoTime();
+        if (t.isForCharacteristic()) {
+            if (!t.isWrite) {
+                return mGatt.readCharacteristic(t.chr);
+            }
+            // the wrapper is shared, set the type of this one every time
+            t.chr.setValue(payload);
+            t.chr.setWriteType(t.writeType);
+            return mGatt.writeCharacteristic(t.chr);
+        } else if (t.isWrite) {
+            t.desc.setValue(payload);
+            return mGatt.writeDescriptor(t.desc);
+        } else {
+            return mGatt.readDescriptor(t.desc);
+        }
+    }
+
+    /* a transaction of a client, on the link */
+    static class Issued {
+        final Client client;
+        final GattTransaction t;
+        final long issuedAt;
+        /* a tombstone, the queue does not wait for it any more */
+        boolean lost;
+
+        Issued(Client c, GattTransaction trans) {
+            client = c;
+            t = trans;
+            issuedAt = SystemClock.uptimeMillis();
+        }
+
+        boolean matches(Object impl, boolean isChr, boolean write) {
+            if (t.isForMtu() || impl == null) {
+                return t.isForMtu() && impl == null;
+            } else if (isChr != t.isForCharacteristic() || write != t.isWrite) {
+                return false;
+            }
+            Object target = isChr ? t.chr.getImpl() : t.desc.getImpl();
+            return target == impl;
+        }
+    }
+
+    class Client implements TransactionQueue.Consumer<GattTransaction> {
+        final String name;
+        final TransactionQueue queue;
+        /* handed by queue, waiting for its turn */
+        final ArrayDeque<GattTransaction> ready;
+        volatile Listener listener;
+        /* reused to hold sliced payload, only touched by scheduler thread */
+        byte[] scratch;
+
+        Client(String n) {
+            name  = n;
+            ready = new ArrayDeque<GattTransaction>();
+            queue = new TransactionQueue(this);
+            queue.setTimeoutListener(new TransactionQueue.TimeoutListener() {
+                public void onTimeout(Transaction t) {
+                    GattScheduler.this.onTimeout(Client.this, (GattTransaction)t);
+                }
+            });
+        }
+
+        @Override
+        public void onTransact(GattTransaction t) {
+            synchronized(mLock) {
+                // a retry after timeout might hand the same one again
+                if (mClosed || isIssued(t)) {
+                    return;
+                }
+                // one taken back for a retry goes behind the failed one
+                ready.remove(t);
+                ready.addLast(t);
+            }
+            requestPump();
+        }
+    }
+
+    class PumpHandler extends Handler {
+        PumpHandler(Looper looper) {
+            super(looper);
+        }
+
+        public void handleMessage(Message msg) {
+            if (msg.what == PUMP) {
+                pump();
+            }
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called once the link responds a transaction of the client, no
+         * matter it is success or not. A failed one might be retried by its
+         * queue later.
+         */
+        public void onTransacted(GattTransaction t, int status);
+    }
+}
@@ -24,14 +24,38 @@ import com.issc.util.TransactionQueue.Transaction;
 import com.issc.gatt.GattCharacteristic;
 import com.issc.gatt.GattDescriptor;
 
+import android.os.SystemClock;
+
 public class GattTransaction implements Transaction {
 
     public GattCharacteristic chr;
     public GattDescriptor     desc;
     public byte[] value;
+    /* the payload is value[offset, offset + length) */
+    public int offset;
+    public int length;
     public boolean isWrite;
     public long timeout;
 
+    /* only makes sense for writing characteristic */
+    public int writeType = GattCharacteristic.WRITE_TYPE_DEFAULT;
+
+    /* if true, a newer write to the same target replaces this one
+     * if this one is still pending. */
+    public boolean coalesce = false;
+
+    public int priority  = Transaction.PRIORITY_INTERACTIVE;
+    public long deadline = Transaction.DEADLINE_NONE;
+
+    /* System.nanoTime when it was handed to the stack, for measuring */
+    public long sentAt = 0;
+
+    /* completed by GattScheduler with the value of the response */
+    public GattFuture<byte[]> future;
+
+    /* ATT MTU to ask for, only for MTU exchange */
+    public int mtu = 0;
+
     public GattTransaction(GattCharacteristic c, byte[] v) {
         this(c, v, true);
     }
@@ -49,9 +73,18 @@ public class GattTransaction implements Transaction {
             boolean w,
             long t) {
         chr = c;
-        value = v;
         isWrite = w;
         timeout = t;
+        setValue(v);
+    }
+
+    /**
+     * Write a slice of the array, the array is not copied so it should
+     * not be changed until the transaction is done.
+     */
+    public GattTransaction(GattCharacteristic c, byte[] v, int off, int len) {
+        this(c, v);
+        setValue(v, off, len);
     }
 
     public boolean isForCharacteristic() {
@@ -75,18 +108,103 @@ public class GattTransaction implements Transaction {
             boolean w,
             long t) {
         desc = d;
-        value = v;
         isWrite = w;
         timeout = t;
+        setValue(v);
     }
 
     public boolean isForDescriptor() {
         return (desc != null);
     }
 
+    /**
+     * Exchange ATT MTU, it goes alone on the link like any request.
+     */
+    public GattTransaction(int m) {
+        mtu = m;
+        timeout = Transaction.TIMEOUT_NONE;
+    }
+
+    public boolean isForMtu() {
+        return (chr == null && desc == null);
+    }
+
+    public void setValue(byte[] v) {
+        setValue(v, 0, (v == null) ? 0 : v.length);
+    }
+
+    public void setValue(byte[] v, int off, int len) {
+        value  = v;
+        offset = off;
+        length = len;
+    }
+
+    /**
+     * Get the payload as an array of its exact length.
+     *
+     * If the payload is the whole value, the value itself is returned.
+     * Otherwise it is copied to scratch if scratch has the exact length, or
+     * to a new array. Caller could keep the returned array as scratch of next
+     * call, once the stack took the value.
+     */
+    public byte[] getPayload(byte[] scratch) {
+        if (value == null || (offset == 0 && length == value.length)) {
+            return value;
+        }
+
+        byte[] payload = (scratch != null && scratch.length == length) ?
+            scratch : new byte[length];
+        System.arraycopy(value, offset, payload, 0, length);
+        return payload;
+    }
+
+    /**
+     * Drop this transaction if it could not be transacted in time.
+     */
+    public void expireAfter(long ms) {
+        deadline = SystemClock.uptimeMillis() + ms;
+    }
+
     @Override
     public long getTimeout() {
         return timeout;
     }
+
+    @Override
+    public int getPriority() {
+        return priority;
+    }
+
+    @Override
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Only Write-Without-Response could be pipelined, remote device does not
+     * respond it so we do not have to wait for a round trip.
+     */
+    @Override
+    public boolean isPipelined() {
+        return isWrite
+            && isForCharacteristic()
+            && (writeType == GattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+    }
+
+    /**
+     * Use the underlying attribute rather than its UUID as key, since
+     * several characteristics might share the same UUID, such as the
+     * Analog Outputs of Automation IO.
+     */
+    @Override
+    public Object getCoalesceKey() {
+        if (!coalesce || !isWrite) {
+            return null;
+        } else if (isForCharacteristic()) {
+            return chr.getImpl();
+        } else {
+            return desc.getImpl();
+        }
+    }
 }
 
@@ -24,13 +24,17 @@ import com.issc.gatt.GattCharacteristic;
 import com.issc.gatt.GattDescriptor;
 import com.issc.gatt.GattService;
 import com.issc.impl.aosp.AospGattAdapter;
+import com.issc.impl.cache.GattTableCache;
 import com.issc.impl.test.FakeGattAdapter;
 import com.issc.util.Log;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
@@ -46,18 +50,36 @@ import android.os.IBinder;
  * This class is a wrapper that handles Gatt related operations.
  *
  * Upper layer just use this service so that they do not have to
- * deal with Gatt by themself.
+ * deal with Gatt by themself. Several devices could be connected at the
+ * same time, each has its own session selected by the device address.
  */
 public class LeService extends Service {
 
     private IBinder mBinder;
 
-    private boolean mGattReady = false;
     private GattAdapter mGattAdapter = null;
-    private Gatt mGatt = null;
     private Gatt.Listener mCallback;
 
+    /* connection of each device, keyed by address */
+    private Map<String, Session> mSessions;
+
     private List<Listener> mListeners;
+    private SubscriptionTable mTable;
+    private ValueCache mCache;
+    private GattTableCache mTables;
+
+    /* values never change during a session, read once discovered */
+    private final static UUID[] PREFETCH = {
+        Bluebit.CHR_MANUFACTURE_NAME,
+        Bluebit.CHR_MODEL_NUMBER,
+        Bluebit.CHR_SERIAL_NUMBER,
+        Bluebit.CHR_HARDWARE_REVISION,
+        Bluebit.CHR_FIRMWARE_REVISION,
+        Bluebit.CHR_SOFTWARE_REVISION
+    };
+
+    /* battery changes slowly, and it notifies if it could */
+    private final static long BATTERY_TTL = 60 * 1000;
     private Object mLock;
 
     @Override
@@ -65,7 +87,16 @@ public class LeService extends Service {
         super.onCreate();
         mLock = new Object();
         mCallback   = new TheCallback();
-        mListeners  = new ArrayList<Listener>();
+        mListeners  = new CopyOnWriteArrayList<Listener>();
+        mTable      = new SubscriptionTable();
+        mSessions   = new ConcurrentHashMap<String, Session>();
+
+        mCache = new ValueCache();
+        for (UUID uuid: PREFETCH) {
+            mCache.setTtl(uuid, ValueCache.TTL_FOREVER);
+        }
+        mCache.setTtl(Bluebit.CHR_BATTERY_LEVEL, BATTERY_TTL);
+        mTables = new GattTableCache(new File(getCacheDir(), "gatt"));
 
         mBinder = new LocalBinder();
     }
@@ -95,40 +126,104 @@ public class LeService extends Service {
         return mBinder;
     }
 
+    /**
+     * Listener is called in the Bluetooth callback thread, it should
+     * return quickly.
+     */
     public void addListener(Listener l) {
-        synchronized(mLock) {
-            mListeners.add(l);
-        }
+        mListeners.add(l);
+    }
+
+    /**
+     * Listener is called in its own thread, so it could be slow without
+     * holding others.
+     *
+     * @param capacity how many notifications could wait for it
+     * @param policy AsyncListener.POLICY_DROP or POLICY_LATEST
+     */
+    public void addListener(Listener l, int capacity, int policy) {
+        mListeners.add(new AsyncListener(l, capacity, policy));
     }
 
     public boolean rmListener(Listener l) {
-        synchronized(mLock) {
-            return mListeners.remove(l);
+        for (Listener x: mListeners) {
+            if (x == l) {
+                return mListeners.remove(x);
+            }
+            if (x instanceof AsyncListener
+                    && ((AsyncListener)x).getTarget() == l) {
+                ((AsyncListener)x).close();
+                return mListeners.remove(x);
+            }
         }
+        return false;
+    }
+
+    /**
+     * Receive callbacks of a device, except notifications.
+     *
+     * Unlike addListener, callbacks of other devices never reach it.
+     */
+    public void subscribe(BluetoothDevice device, Listener l) {
+        mTable.addDevice(device.getAddress(), l);
+    }
+
+    /**
+     * Receive notifications of a characteristic, only onCharacteristicChanged
+     * is called.
+     *
+     * @param device null for any device
+     * @param service null for any service
+     */
+    public void subscribe(BluetoothDevice device,
+            UUID service,
+            UUID chr,
+            Listener l) {
+        String address = (device == null) ? null : device.getAddress();
+        mTable.addCharacteristic(address, service, chr, l);
+    }
+
+    /**
+     * Remove every subscription of the listener.
+     */
+    public boolean unsubscribe(Listener l) {
+        return mTable.remove(l);
     }
 
     private void releaseGatt() {
         synchronized(mLock) {
-            mGattReady = false;
-            if (mGatt != null) {
-                mGatt.disconnect();
-                mGatt.close();
+            for (Session session: mSessions.values()) {
+                session.gatt.disconnect();
+                session.close();
             }
-            mGatt = null;
+            mSessions.clear();
+        }
+    }
+
+    /* null if the device has no session */
+    private Gatt gattOf(BluetoothDevice device) {
+        if (device == null) {
+            return null;
         }
+        Session session = mSessions.get(device.getAddress());
+        return (session == null) ? null : session.gatt;
     }
 
     /**
      * Invoke this method to initialize Gatt before using Gatt.
      *
-     * FIXME: right now we support connect to just 1 device.
+     * Sessions of other devices are kept, connecting to the same device
+     * again replaces its session. Cached values of the device belong to one
+     * session, firmware of it might be updated in between.
      */
     public Gatt connectGatt(Context ctx, boolean auto, BluetoothDevice dev) {
-        if (mGatt != null) {
+        synchronized(mLock) {
+            // also forgets values of the previous session
             closeGatt(dev);
+            Gatt gatt = mGattAdapter.connectGatt(ctx, auto, mCallback, dev);
+            mSessions.put(dev.getAddress(), new Session(gatt));
+            return gatt;
         }
-        mGatt = mGattAdapter.connectGatt(ctx, auto, mCallback, dev);
-        return mGatt;
     }
 
     public void closeGatt(BluetoothDevice device) {
@@ -136,9 +231,15 @@ public class LeService extends Service {
          * onDestroy. However, if user press-back-key too fast, this Service will
          * release Gatt before destroying the activity, therefore Gatt might be null
          * when activity do closing Gatt.*/
-        if (mGatt != null) {
-            mGatt.close();
-            mGatt = null;
+        if (device == null) {
+            return;
+        }
+        synchronized(mLock) {
+            Session session = mSessions.remove(device.getAddress());
+            if (session != null) {
+                session.close();
+            }
+            mCache.invalidate(device.getAddress());
         }
     }
 
@@ -151,7 +252,8 @@ public class LeService extends Service {
     }
 
     public boolean connect(BluetoothDevice device, boolean auto) {
-        return mGatt.connect();
+        Gatt gatt = gattOf(device);
+        return (gatt != null) && gatt.connect();
     }
 
     public void disconnect(BluetoothDevice device) {
@@ -159,8 +261,9 @@ public class LeService extends Service {
          * onDestroy. However, if user press-back-key too fast, this Service will
          * release Gatt before destroying the activity, therefore Gatt might be null
          * when activity do disconnecting.*/
-        if (mGatt != null) {
-            mGatt.disconnect();
+        Gatt gatt = gattOf(device);
+        if (gatt != null) {
+            gatt.disconnect();
         }
     }
 
@@ -168,8 +271,28 @@ public class LeService extends Service {
         return mGattAdapter.getConnectedDevices();
     }
 
+    /**
+     * @return devices having a session, connected or not.
+     */
+    public List<BluetoothDevice> getSessionDevices() {
+        List<BluetoothDevice> devices = new ArrayList<BluetoothDevice>();
+        for (Session session: mSessions.values()) {
+            devices.add(session.gatt.getDevice());
+        }
+        return devices;
+    }
+
+    /**
+     * @return connection state of the session, as reported by callbacks.
+     */
+    public int getSessionState(BluetoothDevice device) {
+        Session session = (device == null) ? null : mSessions.get(device.getAddress());
+        return (session == null) ? BluetoothProfile.STATE_DISCONNECTED : session.state;
+    }
+
     public boolean discoverServices(BluetoothDevice device) {
-        return mGatt.discoverServices();
+        Gatt gatt = gattOf(device);
+        return (gatt != null) && gatt.discoverServices();
     }
 
     public int getConnectionState(BluetoothDevice device) {
@@ -177,115 +300,401 @@ public class LeService extends Service {
     }
 
     public GattService getService(BluetoothDevice device, UUID uuid) {
-        return mGatt.getService(uuid);
+        Gatt gatt = gattOf(device);
+        return (gatt == null) ? null : gatt.getService(uuid);
     }
 
     public List<GattService> getServices(BluetoothDevice device) {
-        return mGatt.getServices();
+        Gatt gatt = gattOf(device);
+        return (gatt == null) ? null : gatt.getServices();
+    }
+
+    /* Following requests go through the scheduler of the device, so they do
+     * not collide with transactions of clients. True means it is queued,
+     * the result comes by callback as usual. */
+
+    public boolean readCharacteristic(BluetoothDevice device, GattCharacteristic chr) {
+        // never served by cache, caller waits for the callback. A pending
+        // read of it will call back as well
+        GattTransaction t = control(new GattTransaction(chr, null, false));
+        return read(device, t).getStatus() != GattFuture.STATUS_REFUSED;
+    }
+
+    public boolean writeCharacteristic(BluetoothDevice device, GattCharacteristic chr) {
+        GattScheduler scheduler = getScheduler(device);
+        if (scheduler == null) {
+            return false;
+        }
+
+        // keep the type set by caller, the wrapper might be changed meanwhile
+        GattTransaction t = new GattTransaction(chr, copy(chr.getValue()));
+        t.writeType = chr.getWriteType();
+        return scheduler.submit(control(t));
+    }
+
+    public boolean readDescriptor(BluetoothDevice device, GattDescriptor dsc) {
+        return read(device, dsc).getStatus() != GattFuture.STATUS_REFUSED;
+    }
+
+    public boolean writeDescriptor(BluetoothDevice device, GattDescriptor dsc) {
+        GattScheduler scheduler = getScheduler(device);
+        return (scheduler != null)
+            && scheduler.submit(control(new GattTransaction(dsc, copy(dsc.getValue()))));
+    }
+
+    public boolean setCharacteristicNotification(BluetoothDevice device,
+            GattCharacteristic chr,
+            boolean enable) {
+        Gatt gatt = gattOf(device);
+        return (gatt != null) && gatt.setCharacteristicNotification(chr, enable);
+    }
+
+    /**
+     * Read a characteristic, the future carries the value.
+     *
+     * Unlike readCharacteristic, the caller does not have to find its
+     * result among callbacks. Readers of the same characteristic at the
+     * same time share one request, and a cached value is returned without
+     * any request.
+     */
+    public GattFuture<byte[]> read(BluetoothDevice device, GattCharacteristic chr) {
+        byte[] cached = getCachedValue(device, chr);
+        if (cached != null) {
+            return GattFuture.completed(cached);
+        }
+        return read(device, control(new GattTransaction(chr, null, false)));
+    }
+
+    public GattFuture<byte[]> write(BluetoothDevice device,
+            GattCharacteristic chr,
+            byte[] value) {
+        return request(device, control(new GattTransaction(chr, copy(value))));
+    }
+
+    public GattFuture<byte[]> read(BluetoothDevice device, GattDescriptor dsc) {
+        return read(device, control(new GattTransaction(dsc, null, false)));
+    }
+
+    private GattFuture<byte[]> read(BluetoothDevice device, GattTransaction t) {
+        GattScheduler scheduler = getScheduler(device);
+        if (scheduler == null) {
+            GattFuture<byte[]> future = new GattFuture<byte[]>();
+            future.fail(GattFuture.STATUS_REFUSED);
+            return future;
+        }
+        return scheduler.read(t);
+    }
+
+    public GattFuture<byte[]> write(BluetoothDevice device,
+            GattDescriptor dsc,
+            byte[] value) {
+        return request(device, control(new GattTransaction(dsc, copy(value))));
+    }
+
+    private GattFuture<byte[]> request(BluetoothDevice device, GattTransaction t) {
+        GattFuture<byte[]> future = new GattFuture<byte[]>();
+        t.future = future;
+        GattScheduler scheduler = getScheduler(device);
+        if (scheduler == null || !scheduler.submit(t)) {
+            future.fail(GattFuture.STATUS_REFUSED);
+        }
+        return future;
+    }
+
+    /**
+     * @return a copy of the cached value of the characteristic, or null if
+     *         there is no fresh one.
+     */
+    public byte[] getCachedValue(BluetoothDevice device, GattCharacteristic chr) {
+        if (device == null) {
+            return null;
+        }
+        return mCache.get(device.getAddress(), serviceOf(chr), chr.getUuid());
+    }
+
+    /**
+     * Attribute table of the device from its last discovery, even before
+     * connected. It is for knowing what the device has at once, requests
+     * could not be made by these attributes. Use getServices() once
+     * discovered.
+     *
+     * The table is loaded from disk in background, the callback runs in
+     * that thread and gets null if the device was never discovered.
+     */
+    public void loadCachedServices(BluetoothDevice device,
+            GattTableCache.LoadCallback callback) {
+        mTables.load(device.getAddress(), callback);
+    }
+
+    /**
+     * Forget cached values of the device, such as after its firmware is
+     * updated.
+     */
+    public void invalidateCache(BluetoothDevice device) {
+        mCache.invalidate(device.getAddress());
+    }
+
+    /* Read static characteristics at low priority right after discovery,
+     * so screens could show them from cache. */
+    private void prefetch(Gatt gatt) {
+        GattScheduler scheduler = schedulerOf(gatt);
+        if (scheduler == null) {
+            return;
+        }
+
+        String address = gatt.getDevice().getAddress();
+        for (GattService srv: gatt.getServices()) {
+            for (GattCharacteristic chr: srv.getCharacteristics()) {
+                if (!isPrefetched(chr.getUuid())
+                        || (chr.getProperties() & GattCharacteristic.PROPERTY_READ) == 0
+                        || mCache.get(address, srv.getUuid(), chr.getUuid()) != null) {
+                    continue;
+                }
+
+                GattTransaction t = new GattTransaction(chr, null, false);
+                t.priority = GattTransaction.PRIORITY_BULK;
+                scheduler.read(t);
+            }
+        }
+    }
+
+    private static boolean isPrefetched(UUID chr) {
+        for (UUID uuid: PREFETCH) {
+            if (uuid.equals(chr)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static UUID serviceOf(GattCharacteristic chr) {
+        GattService srv = chr.getService();
+        return (srv == null) ? null : srv.getUuid();
+    }
+
+    /* requests made to LeService directly go before clients' traffic */
+    private static GattTransaction control(GattTransaction t) {
+        t.priority = GattTransaction.PRIORITY_CONTROL;
+        return t;
+    }
+
+    /**
+     * Ask for a larger ATT MTU, in turn with other requests of the device.
+     * The result comes by onMtuChanged, unless the platform does not
+     * support it.
+     */
+    public boolean requestMtu(BluetoothDevice device, int mtu) {
+        GattScheduler scheduler = getScheduler(device);
+        return (scheduler != null)
+            && scheduler.submit(control(new GattTransaction(mtu)));
     }
 
-    public boolean readCharacteristic(GattCharacteristic chr) {
-        return mGatt.readCharacteristic(chr);
+    public int getMtu(BluetoothDevice device) {
+        Gatt gatt = gattOf(device);
+        return (gatt == null) ? Gatt.MTU_DEFAULT : gatt.getMtu();
     }
 
-    public boolean writeCharacteristic(GattCharacteristic chr) {
-        return mGatt.writeCharacteristic(chr);
+    /**
+     * Get the scheduler which every request to the device goes through.
+     * Clients should send transactions by queues of the scheduler, rather
+     * than making requests by themselves.
+     *
+     * @return null if the device has no session.
+     */
+    public GattScheduler getScheduler(BluetoothDevice device) {
+        Session session = (device == null) ? null : mSessions.get(device.getAddress());
+        return (session == null) ? null : session.scheduler;
     }
 
-    public boolean readDescriptor(GattDescriptor dsc) {
-        return mGatt.readDescriptor(dsc);
+    /* scheduler of the session which the callback comes from */
+    private GattScheduler schedulerOf(Gatt gatt) {
+        Session session = mSessions.get(gatt.getDevice().getAddress());
+        return (session != null && session.gatt == gatt) ? session.scheduler : null;
     }
 
-    public boolean writeDescriptor(GattDescriptor dsc) {
-        return mGatt.writeDescriptor(dsc);
+    private static byte[] copy(byte[] value) {
+        return (value == null) ? null : value.clone();
     }
 
-    public boolean setCharacteristicNotification(GattCharacteristic chr, boolean enable) {
-        return mGatt.setCharacteristicNotification(chr, enable);
+    /* a connection to one device */
+    static class Session {
+        final Gatt gatt;
+        final GattScheduler scheduler;
+        volatile int state = BluetoothProfile.STATE_DISCONNECTED;
+
+        Session(Gatt g) {
+            gatt = g;
+            scheduler = new GattScheduler(g);
+        }
+
+        void close() {
+            scheduler.close();
+            gatt.close();
+        }
     }
 
     /* This is the only one callback that register to GATT. It dispatch each
-     * of returen value to listeners. */
+     * of returen value to listeners. Iterating a copy-on-write list takes
+     * no lock, listeners could be added or removed meanwhile. Then
+     * subscribers of the device, or of the characteristic for
+     * notifications, are looked up by index. */
     class TheCallback implements Gatt.Listener {
         @Override
         public void onCharacteristicChanged(Gatt gatt, GattCharacteristic chrc) {
-            synchronized(mListeners) {
-                Iterator<Listener> it = mListeners.iterator();
-                while(it.hasNext()) {
-                    it.next().onCharacteristicChanged(gatt, chrc);
+            String address = gatt.getDevice().getAddress();
+            mCache.invalidate(address, serviceOf(chrc), chrc.getUuid());
+
+            for (Listener l: mListeners) {
+                l.onCharacteristicChanged(gatt, chrc);
+            }
+
+            for (SubscriptionTable.Entry e: mTable.forCharacteristic(chrc.getUuid())) {
+                if (e.matches(address, chrc)) {
+                    e.listener.onCharacteristicChanged(gatt, chrc);
                 }
             }
         }
 
         @Override
         public void onCharacteristicRead(Gatt gatt, GattCharacteristic chrc, int status) {
-            synchronized(mListeners) {
-                Iterator<Listener> it = mListeners.iterator();
-                while(it.hasNext()) {
-                    it.next().onCharacteristicRead(gatt, chrc, status);
-                }
+            if (status == Gatt.GATT_SUCCESS) {
+                // before futures are completed, so later readers hit it
+                mCache.put(gatt.getDevice().getAddress(),
+                        serviceOf(chrc),
+                        chrc.getUuid(),
+                        chrc.getValue());
+            }
+
+            for (Listener l: mListeners) {
+                l.onCharacteristicRead(gatt, chrc, status);
+            }
+            for (SubscriptionTable.Entry e: subscribers(gatt)) {
+                e.listener.onCharacteristicRead(gatt, chrc, status);
+            }
+
+            GattScheduler scheduler = schedulerOf(gatt);
+            if (scheduler != null) {
+                scheduler.onCharacteristicResult(chrc, false, status);
             }
         }
 
         @Override
         public void onCharacteristicWrite(Gatt gatt, GattCharacteristic chrc, int status) {
-            synchronized(mListeners) {
-                Iterator<Listener> it = mListeners.iterator();
-                while(it.hasNext()) {
-                    it.next().onCharacteristicWrite(gatt, chrc, status);
-                }
+            mCache.invalidate(gatt.getDevice().getAddress(), serviceOf(chrc), chrc.getUuid());
+
+            for (Listener l: mListeners) {
+                l.onCharacteristicWrite(gatt, chrc, status);
+            }
+            for (SubscriptionTable.Entry e: subscribers(gatt)) {
+                e.listener.onCharacteristicWrite(gatt, chrc, status);
+            }
+
+            GattScheduler scheduler = schedulerOf(gatt);
+            if (scheduler != null) {
+                scheduler.onCharacteristicResult(chrc, true, status);
             }
         }
 
         @Override
         public void onConnectionStateChange(Gatt gatt, int status, int newState) {
-            synchronized(mListeners) {
-                Iterator<Listener> it = mListeners.iterator();
-                while(it.hasNext()) {
-                    it.next().onConnectionStateChange(gatt, status, newState);
-                }
+            Session session = mSessions.get(gatt.getDevice().getAddress());
+            if (session != null && session.gatt == gatt) {
+                session.state = newState;
+            }
+
+            for (Listener l: mListeners) {
+                l.onConnectionStateChange(gatt, status, newState);
+            }
+            for (SubscriptionTable.Entry e: subscribers(gatt)) {
+                e.listener.onConnectionStateChange(gatt, status, newState);
             }
         }
 
         @Override
         public void onDescriptorRead(Gatt gatt, GattDescriptor descriptor, int status) {
-            synchronized(mListeners) {
-                Iterator<Listener> it = mListeners.iterator();
-                while(it.hasNext()) {
-                    it.next().onDescriptorRead(gatt, descriptor, status);
-                }
+            for (Listener l: mListeners) {
+                l.onDescriptorRead(gatt, descriptor, status);
+            }
+            for (SubscriptionTable.Entry e: subscribers(gatt)) {
+                e.listener.onDescriptorRead(gatt, descriptor, status);
+            }
+
+            GattScheduler scheduler = schedulerOf(gatt);
+            if (scheduler != null) {
+                scheduler.onDescriptorResult(descriptor, false, status);
             }
         }
 
         @Override
         public void onDescriptorWrite(Gatt gatt, GattDescriptor descriptor, int status) {
-            synchronized(mListeners) {
-                Iterator<Listener> it = mListeners.iterator();
-                while(it.hasNext()) {
-                    it.next().onDescriptorWrite(gatt, descriptor, status);
-                }
+            for (Listener l: mListeners) {
+                l.onDescriptorWrite(gatt, descriptor, status);
+            }
+            for (SubscriptionTable.Entry e: subscribers(gatt)) {
+                e.listener.onDescriptorWrite(gatt, descriptor, status);
+            }
+
+            GattScheduler scheduler = schedulerOf(gatt);
+            if (scheduler != null) {
+                scheduler.onDescriptorResult(descriptor, true, status);
             }
         }
 
         @Override
         public void onReadRemoteRssi(Gatt gatt,  int rssi, int status) {
-            synchronized(mListeners) {
-                Iterator<Listener> it = mListeners.iterator();
-                while(it.hasNext()) {
-                    it.next().onReadRemoteRssi(gatt, rssi, status);
-                }
+            for (Listener l: mListeners) {
+                l.onReadRemoteRssi(gatt, rssi, status);
+            }
+            for (SubscriptionTable.Entry e: subscribers(gatt)) {
+                e.listener.onReadRemoteRssi(gatt, rssi, status);
             }
         }
 
         @Override
         public void onServicesDiscovered(Gatt gatt,  int status) {
-            synchronized(mListeners) {
-                Iterator<Listener> it = mListeners.iterator();
-                while(it.hasNext()) {
-                    it.next().onServicesDiscovered(gatt, status);
-                }
+            for (Listener l: mListeners) {
+                l.onServicesDiscovered(gatt, status);
+            }
+            for (SubscriptionTable.Entry e: subscribers(gatt)) {
+                e.listener.onServicesDiscovered(gatt, status);
+            }
+
+            if (status == Gatt.GATT_SUCCESS) {
+                final Gatt discovered = gatt;
+                // compared in background, prefetch after stale values are gone
+                mTables.update(gatt.getDevice().getAddress(),
+                        gatt.getServices(),
+                        new GattTableCache.UpdateCallback() {
+                            public void onUpdated(String address, boolean changed) {
+                                if (changed) {
+                                    // new or changed, such as after firmware update
+                                    Log.d("attribute table of " + address + " changed");
+                                    mCache.invalidate(address);
+                                }
+                                prefetch(discovered);
+                            }
+                        });
             }
         }
+
+        @Override
+        public void onMtuChanged(Gatt gatt, int mtu, int status) {
+            for (Listener l: mListeners) {
+                l.onMtuChanged(gatt, mtu, status);
+            }
+            for (SubscriptionTable.Entry e: subscribers(gatt)) {
+                e.listener.onMtuChanged(gatt, mtu, status);
+            }
+
+            GattScheduler scheduler = schedulerOf(gatt);
+            if (scheduler != null) {
+                scheduler.onMtuResult(status);
+            }
+        }
+
+        private SubscriptionTable.Entry[] subscribers(Gatt gatt) {
+            return mTable.forDevice(gatt.getDevice().getAddress());
+        }
     }
 
     public class LocalBinder extends Binder {
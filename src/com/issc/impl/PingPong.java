@@ -0,0 +1,294 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.impl;
+
+import com.issc.gatt.GattCharacteristic;
+import com.issc.util.LatencyHistogram;
+import com.issc.util.TransactionQueue;
+
+import java.nio.ByteBuffer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+
+/**
+ * Measure round trip time to a device which echoes what it receives.
+ *
+ * Pings are sent one by one. Each carries a sequence number and the
+ * System.nanoTime it was sent, so the echo alone tells its round trip
+ * time. Next ping is sent once the echo arrives, or the ping is
+ * considered lost after a timeout.
+ *
+ * The owner should pass every received packet to {@link #onEcho}.
+ */
+public class PingPong {
+
+    /** Bytes of magic, sequence number and timestamp. */
+    public final static int HEADER = 14;
+
+    private final static byte MAGIC_0 = 'P';
+    private final static byte MAGIC_1 = 'G';
+
+    private final static int SEND    = 0x1;
+    private final static int TIMEOUT = 0x2;
+
+    private TransactionQueue mQueue;
+    private GattCharacteristic mChr;
+    private Handler mHandler;
+    private Listener mListener;
+
+    private int  mCount;
+    private int  mSize;
+    private long mInterval;
+    private long mTimeout;
+    private int  mWriteType = GattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+
+    private LatencyHistogram mRtt;
+    private boolean[] mEchoed;
+    private int mWaiting = -1; // sequence number waiting for echo
+    private int mHighest = -1; // highest sequence number echoed
+
+    private int mSent       = 0;
+    private int mReceived   = 0;
+    private int mLate       = 0;
+    private int mReordered  = 0;
+    private int mDuplicated = 0;
+
+    private boolean mCancelled = false;
+    private boolean mFinished  = false;
+
+    /**
+     * @param count how many pings to send
+     * @param size bytes of a ping, at least HEADER
+     * @param interval milliseconds between an echo and next ping
+     * @param timeout milliseconds to wait for an echo
+     */
+    public PingPong(TransactionQueue queue,
+            GattCharacteristic chr,
+            int count,
+            int size,
+            long interval,
+            long timeout) {
+
+        if (size < HEADER) {
+            throw new IllegalArgumentException("ping should be at least "
+                    + HEADER + " bytes");
+        }
+
+        mQueue    = queue;
+        mChr      = chr;
+        mCount    = count;
+        mSize     = size;
+        mInterval = interval;
+        mTimeout  = timeout;
+        mRtt      = new LatencyHistogram();
+        mEchoed   = new boolean[count];
+
+        HandlerThread thread = new HandlerThread("PingPong");
+        thread.start();
+        mHandler = new PingHandler(thread.getLooper());
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Should be set before starting.
+     */
+    public void setWriteType(int type) {
+        mWriteType = type;
+    }
+
+    public void start() {
+        mHandler.sendEmptyMessage(SEND);
+    }
+
+    public void cancel() {
+        synchronized(this) {
+            mCancelled = true;
+        }
+        finish();
+    }
+
+    /**
+     * Call this once a packet is received, runs on any thread.
+     *
+     * @return true if it is an echo of ping, it should not be handled by
+     *         others.
+     */
+    public boolean onEcho(byte[] data) {
+        long now = System.nanoTime();
+        if (data == null || data.length < HEADER
+                || data[0] != MAGIC_0 || data[1] != MAGIC_1) {
+            return false;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(data, 2, HEADER - 2);
+        int seq = buf.getInt();
+        long sentAt = buf.getLong();
+
+        synchronized(this) {
+            if (mFinished || seq < 0 || seq >= mCount) {
+                return true;
+            }
+
+            if (mEchoed[seq]) {
+                mDuplicated++;
+                return true;
+            }
+
+            mEchoed[seq] = true;
+            mReceived++;
+            mRtt.recordNanos(now - sentAt);
+            if (seq < mHighest) {
+                mReordered++;
+            } else {
+                mHighest = seq;
+            }
+
+            if (seq == mWaiting) {
+                mWaiting = -1;
+                mHandler.removeMessages(TIMEOUT);
+                mHandler.sendEmptyMessageDelayed(SEND, mInterval);
+            } else {
+                // arrived after its timeout
+                mLate++;
+            }
+        }
+        return true;
+    }
+
+    public LatencyHistogram getRtt() {
+        return mRtt;
+    }
+
+    public synchronized int getSent() {
+        return mSent;
+    }
+
+    public synchronized int getReceived() {
+        return mReceived;
+    }
+
+    /**
+     * @return pings without echo.
+     */
+    public synchronized int getLost() {
+        return mSent - mReceived;
+    }
+
+    /**
+     * @return echoes arrived after their timeout, they are not lost.
+     */
+    public synchronized int getLate() {
+        return mLate;
+    }
+
+    /**
+     * @return echoes arrived after an echo of later ping.
+     */
+    public synchronized int getReordered() {
+        return mReordered;
+    }
+
+    public synchronized int getDuplicated() {
+        return mDuplicated;
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /* runs in ping thread */
+    private void sendNext() {
+        GattTransaction t;
+        synchronized(this) {
+            if (mFinished || mWaiting >= 0) {
+                return;
+            }
+            if (mSent >= mCount) {
+                t = null;
+            } else {
+                byte[] ping = new byte[mSize];
+                ping[0] = MAGIC_0;
+                ping[1] = MAGIC_1;
+                ByteBuffer buf = ByteBuffer.wrap(ping, 2, HEADER - 2);
+                buf.putInt(mSent);
+                buf.putLong(System.nanoTime());
+
+                t = new GattTransaction(mChr, ping);
+                t.writeType = mWriteType;
+                mWaiting = mSent;
+                mSent++;
+                mHandler.sendEmptyMessageDelayed(TIMEOUT, mTimeout);
+            }
+        }
+
+        if (t == null) {
+            finish();
+        } else {
+            mQueue.add(t);
+        }
+    }
+
+    /* runs in ping thread */
+    private void onTimeout() {
+        synchronized(this) {
+            if (mWaiting < 0) {
+                return;
+            }
+            mWaiting = -1;
+        }
+        sendNext();
+    }
+
+    private void finish() {
+        synchronized(this) {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+        }
+
+        mHandler.removeCallbacksAndMessages(null);
+        mHandler.getLooper().quit();
+        if (mListener != null) {
+            mListener.onFinished(this);
+        }
+    }
+
+    public interface Listener {
+        public void onFinished(PingPong ping);
+    }
+
+    class PingHandler extends Handler {
+        PingHandler(Looper looper) {
+            super(looper);
+        }
+
+        public void handleMessage(Message msg) {
+            if (msg.what == SEND) {
+                sendNext();
+            } else if (msg.what == TIMEOUT) {
+                onTimeout();
+            }
+        }
+    }
+}
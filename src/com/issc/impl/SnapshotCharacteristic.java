@@ -0,0 +1,123 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.impl;
+
+import com.issc.gatt.GattCharacteristic;
+import com.issc.gatt.GattDescriptor;
+import com.issc.gatt.GattService;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A characteristic whose value is fixed at the moment of a callback.
+ *
+ * The platform reuses one characteristic object for every notification,
+ * so a listener which runs later would see a newer value. Everything but
+ * the value goes to the real characteristic.
+ */
+class SnapshotCharacteristic implements GattCharacteristic {
+
+    private GattCharacteristic mChr;
+    private byte[] mValue;
+
+    SnapshotCharacteristic(GattCharacteristic chr) {
+        mChr = chr;
+        byte[] value = chr.getValue();
+        mValue = (value == null) ? null : value.clone();
+    }
+
+    /* replace the value by a newer one, for keeping only the latest */
+    void update(byte[] value) {
+        mValue = (value == null) ? null : value.clone();
+    }
+
+    @Override
+    public Object getImpl() {
+        return mChr.getImpl();
+    }
+
+    @Override
+    public GattService getService() {
+        return mChr.getService();
+    }
+
+    @Override
+    public GattDescriptor getDescriptor(UUID uuid) {
+        return mChr.getDescriptor(uuid);
+    }
+
+    @Override
+    public List<GattDescriptor> getDescriptors() {
+        return mChr.getDescriptors();
+    }
+
+    @Override
+    public Integer getIntValue(int type, int offset) {
+        // same format as BluetoothGattCharacteristic, little endian and
+        // size in low nibble of type
+        int size = type & 0xF;
+        if (mValue == null || offset + size > mValue.length) {
+            return null;
+        }
+
+        int value = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            value = (value << 8) | (mValue[offset + i] & 0xFF);
+        }
+        boolean signed = (type & 0xF0) == 0x20;
+        if (signed && size < 4 && (value & (1 << (size * 8 - 1))) != 0) {
+            value -= 1 << (size * 8);
+        }
+        return value;
+    }
+
+    @Override
+    public int getPermissions() {
+        return mChr.getPermissions();
+    }
+
+    @Override
+    public int getProperties() {
+        return mChr.getProperties();
+    }
+
+    @Override
+    public UUID getUuid() {
+        return mChr.getUuid();
+    }
+
+    @Override
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    @Override
+    public boolean setValue(byte[] value) {
+        return mChr.setValue(value);
+    }
+
+    @Override
+    public int getWriteType() {
+        return mChr.getWriteType();
+    }
+
+    @Override
+    public void setWriteType(int writeType) {
+        mChr.setWriteType(writeType);
+    }
+}
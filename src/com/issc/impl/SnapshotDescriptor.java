@@ -0,0 +1,76 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.impl;
+
+import com.issc.gatt.GattCharacteristic;
+import com.issc.gatt.GattDescriptor;
+
+import java.util.UUID;
+
+/**
+ * A descriptor whose value is fixed at the moment of a callback.
+ *
+ * Like SnapshotCharacteristic, the platform object might be read or written
+ * again before a listener runs. Everything but the value goes to the real
+ * descriptor.
+ */
+class SnapshotDescriptor implements GattDescriptor {
+
+    private GattDescriptor mDsc;
+    private byte[] mValue;
+
+    SnapshotDescriptor(GattDescriptor dsc) {
+        mDsc = dsc;
+        byte[] value = dsc.getValue();
+        mValue = (value == null) ? null : value.clone();
+    }
+
+    @Override
+    public Object getImpl() {
+        return mDsc.getImpl();
+    }
+
+    @Override
+    public GattCharacteristic getCharacteristic() {
+        return mDsc.getCharacteristic();
+    }
+
+    @Override
+    public byte[] getConstantBytes(int type) {
+        return mDsc.getConstantBytes(type);
+    }
+
+    @Override
+    public int getPermissions() {
+        return mDsc.getPermissions();
+    }
+
+    @Override
+    public UUID getUuid() {
+        return mDsc.getUuid();
+    }
+
+    @Override
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    @Override
+    public boolean setValue(byte[] value) {
+        return mDsc.setValue(value);
+    }
+}
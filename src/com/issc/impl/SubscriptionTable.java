@@ -0,0 +1,147 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.impl;
+
+import com.issc.gatt.Gatt.Listener;
+import com.issc.gatt.GattCharacteristic;
+import com.issc.gatt.GattService;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Who wants which callbacks.
+ *
+ * Subscriptions to characteristics are indexed by characteristic UUID,
+ * subscriptions to devices are indexed by address. Each entry is an
+ * array replaced on change, so looking up takes one hash and no lock.
+ */
+class SubscriptionTable {
+
+    private final static Entry[] EMPTY = new Entry[0];
+
+    private Map<UUID, Entry[]>   mByChr;
+    private Map<String, Entry[]> mByDevice;
+
+    SubscriptionTable() {
+        mByChr    = new ConcurrentHashMap<UUID, Entry[]>();
+        mByDevice = new ConcurrentHashMap<String, Entry[]>();
+    }
+
+    /**
+     * @param address null for any device
+     * @param service null for any service
+     */
+    synchronized void addCharacteristic(String address,
+            UUID service,
+            UUID chr,
+            Listener l) {
+        mByChr.put(chr, append(mByChr.get(chr), new Entry(address, service, l)));
+    }
+
+    synchronized void addDevice(String address, Listener l) {
+        mByDevice.put(address, append(mByDevice.get(address), new Entry(address, null, l)));
+    }
+
+    /**
+     * Remove every subscription of the listener.
+     *
+     * @return true if it had any.
+     */
+    synchronized boolean remove(Listener l) {
+        return removeFrom(mByChr, l) | removeFrom(mByDevice, l);
+    }
+
+    /**
+     * @return subscriptions of the device, never null.
+     */
+    Entry[] forDevice(String address) {
+        Entry[] entries = mByDevice.get(address);
+        return (entries == null) ? EMPTY : entries;
+    }
+
+    /**
+     * @return subscriptions of characteristics having this UUID, never
+     *         null. Caller should check {@link Entry#matches}.
+     */
+    Entry[] forCharacteristic(UUID chr) {
+        Entry[] entries = mByChr.get(chr);
+        return (entries == null) ? EMPTY : entries;
+    }
+
+    private static Entry[] append(Entry[] entries, Entry e) {
+        if (entries == null) {
+            return new Entry[] {e};
+        }
+        Entry[] grown = new Entry[entries.length + 1];
+        System.arraycopy(entries, 0, grown, 0, entries.length);
+        grown[entries.length] = e;
+        return grown;
+    }
+
+    private static <K> boolean removeFrom(Map<K, Entry[]> map, Listener l) {
+        boolean removed = false;
+        Iterator<Map.Entry<K, Entry[]>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<K, Entry[]> pair = it.next();
+            List<Entry> kept = new ArrayList<Entry>();
+            for (Entry e: pair.getValue()) {
+                if (e.listener != l) {
+                    kept.add(e);
+                }
+            }
+
+            if (kept.size() == pair.getValue().length) {
+                continue;
+            }
+            removed = true;
+            if (kept.isEmpty()) {
+                it.remove();
+            } else {
+                map.put(pair.getKey(), kept.toArray(new Entry[kept.size()]));
+            }
+        }
+        return removed;
+    }
+
+    static class Entry {
+        final String address;
+        final UUID service;
+        final Listener listener;
+
+        Entry(String a, UUID s, Listener l) {
+            address  = a;
+            service  = s;
+            listener = l;
+        }
+
+        boolean matches(String addr, GattCharacteristic chr) {
+            if (address != null && !address.equals(addr)) {
+                return false;
+            }
+            if (service != null) {
+                GattService srv = chr.getService();
+                return srv != null && service.equals(srv.getUuid());
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.impl;
+
+import com.issc.gatt.GattCharacteristic;
+import com.issc.util.PayloadPattern;
+import com.issc.util.TransactionQueue;
+import com.issc.util.TransactionQueue.Transaction;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Send generated packets at a steady rate.
+ *
+ * Pacing follows a token bucket: a token is earned every interval, and a
+ * few tokens could be saved to catch up after a late wakeup. The thread
+ * parks until the next token is due and spins for the last bit, so
+ * intervals below a millisecond are kept.
+ *
+ * Packets live in preallocated slots. If every slot is still in flight
+ * the tick is skipped and counted, nothing is allocated while running.
+ * The owner of TransactionQueue should pass finished transactions to
+ * {@link #onDone}, including the ones given up by the queue.
+ */
+public class TrafficGenerator {
+
+    /* tokens could be saved, to absorb jitter of wakeup */
+    private final static int BURST = 4;
+
+    /* park less than this is not precise, spin instead */
+    private final static long SPIN_NANOS = 200 * 1000;
+
+    private TransactionQueue mQueue;
+    private PayloadPattern mPattern;
+    private Listener mListener;
+    private Thread mThread;
+
+    private long mInterval;
+    private long mRepeat;
+
+    private byte[] mBuf;
+    private GattTransaction[] mSlots;
+    private int[] mFree;
+    private int mFreeCount;
+
+    private volatile boolean mRunning = false;
+    private long mSent    = 0;
+    private long mSkipped = 0;
+
+    /**
+     * @param size bytes of a packet, at least PayloadPattern.SEQ_BYTES
+     * @param interval nanoseconds between packets
+     * @param repeat how many packets to send, 0 for unlimited
+     * @param slots how many packets could be in flight
+     */
+    public TrafficGenerator(TransactionQueue queue,
+            GattCharacteristic chr,
+            PayloadPattern pattern,
+            int size,
+            long interval,
+            long repeat,
+            int slots) {
+
+        if (size < PayloadPattern.SEQ_BYTES) {
+            throw new IllegalArgumentException("packet should be at least "
+                    + PayloadPattern.SEQ_BYTES + " bytes");
+        }
+
+        mQueue    = queue;
+        mPattern  = pattern;
+        mInterval = Math.max(1, interval);
+        mRepeat   = repeat;
+
+        mBuf   = new byte[size * slots];
+        mSlots = new GattTransaction[slots];
+        mFree  = new int[slots];
+        for (int i = 0; i < slots; i++) {
+            mSlots[i] = new GattTransaction(chr, mBuf, i * size, size);
+            mFree[i] = i;
+        }
+        mFreeCount = slots;
+
+        mThread = new Thread(new Pacer(), "TrafficGenerator");
+        mThread.setPriority(Thread.MAX_PRIORITY);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Should be set before starting.
+     */
+    public void setWriteType(int type) {
+        for (int i = 0; i < mSlots.length; i++) {
+            mSlots[i].writeType = type;
+        }
+    }
+
+    public void start() {
+        mRunning = true;
+        mThread.start();
+    }
+
+    /**
+     * Stop generating, packets in queue are still sent.
+     */
+    public void stop() {
+        mRunning = false;
+        LockSupport.unpark(mThread);
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public synchronized long getSent() {
+        return mSent;
+    }
+
+    /**
+     * @return ticks skipped since every slot was in flight.
+     */
+    public synchronized long getSkipped() {
+        return mSkipped;
+    }
+
+    /**
+     * Call this once a transaction is done, no matter it is success or not.
+     *
+     * @return false if the transaction was not sent by this generator.
+     */
+    public boolean onDone(Transaction t) {
+        for (int i = 0; i < mSlots.length; i++) {
+            if (mSlots[i] == t) {
+                synchronized(this) {
+                    mFree[mFreeCount++] = i;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* send one packet if a slot is free, runs in pacer thread */
+    private boolean tick() {
+        GattTransaction t;
+        synchronized(this) {
+            if (mFreeCount == 0) {
+                mSkipped++;
+                return false;
+            }
+            t = mSlots[mFree[--mFreeCount]];
+            mPattern.fill(mBuf, t.offset, t.length, mSent);
+            mSent++;
+        }
+        mQueue.add(t);
+        return true;
+    }
+
+    class Pacer implements Runnable {
+        public void run() {
+            long sent = 0;
+            long next = System.nanoTime();
+            while (mRunning && (mRepeat == 0 || sent < mRepeat)) {
+                long now = System.nanoTime();
+                if (now < next) {
+                    long wait = next - now;
+                    if (wait > SPIN_NANOS) {
+                        LockSupport.parkNanos(wait - SPIN_NANOS);
+                    } else {
+                        Thread.yield();
+                    }
+                    continue;
+                }
+
+                if (tick()) {
+                    sent++;
+                }
+
+                // at most BURST tokens are saved after falling behind
+                next += mInterval;
+                long floor = now - mInterval * (BURST - 1);
+                if (next < floor) {
+                    next = floor;
+                }
+            }
+
+            mRunning = false;
+            if (mListener != null) {
+                mListener.onFinished(TrafficGenerator.this);
+            }
+        }
+    }
+
+    public interface Listener {
+        public void onFinished(TrafficGenerator generator);
+    }
+}
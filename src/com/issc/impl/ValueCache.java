@@ -0,0 +1,170 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.impl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import android.os.SystemClock;
+
+/**
+ * Values of characteristics read lately, keyed by device, service and
+ * characteristic.
+ *
+ * How long a value stays is decided by UUID of the characteristic. A
+ * characteristic without TTL is never cached. Least recently used values
+ * are dropped once there are too many.
+ */
+class ValueCache {
+
+    /** The value does not change while the device is connected. */
+    final static long TTL_FOREVER = Long.MAX_VALUE;
+
+    private final static int MAX_ENTRIES = 256;
+
+    private Map<UUID, Long> mTtl;
+    private LinkedHashMap<Key, Entry> mEntries;
+
+    private long mHits   = 0;
+    private long mMisses = 0;
+
+    ValueCache() {
+        mTtl = new HashMap<UUID, Long>();
+        mEntries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * @param ms how long values of the characteristic stay, 0 to not cache.
+     */
+    synchronized void setTtl(UUID chr, long ms) {
+        if (ms <= 0) {
+            mTtl.remove(chr);
+        } else {
+            mTtl.put(chr, ms);
+        }
+    }
+
+    synchronized boolean isCachable(UUID chr) {
+        return mTtl.containsKey(chr);
+    }
+
+    /**
+     * @return a copy of the value, or null if there is no fresh one.
+     */
+    synchronized byte[] get(String addr, UUID srv, UUID chr) {
+        Key key = new Key(addr, srv, chr);
+        Entry e = mEntries.get(key);
+        if (e != null && SystemClock.elapsedRealtime() >= e.expiresAt) {
+            mEntries.remove(key);
+            e = null;
+        }
+
+        if (e == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return e.value.clone();
+    }
+
+    synchronized void put(String addr, UUID srv, UUID chr, byte[] value) {
+        Long ttl = mTtl.get(chr);
+        if (ttl == null || value == null) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long expiresAt = (ttl > TTL_FOREVER - now) ? TTL_FOREVER : now + ttl;
+        mEntries.put(new Key(addr, srv, chr), new Entry(value.clone(), expiresAt));
+    }
+
+    synchronized void invalidate(String addr, UUID srv, UUID chr) {
+        if (!mTtl.containsKey(chr)) {
+            // never cached, such as every notifying one
+            return;
+        }
+        mEntries.remove(new Key(addr, srv, chr));
+    }
+
+    /**
+     * Forget every value of the device.
+     */
+    synchronized void invalidate(String addr) {
+        Iterator<Key> it = mEntries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().addr.equals(addr)) {
+                it.remove();
+            }
+        }
+    }
+
+    synchronized long getHitCount() {
+        return mHits;
+    }
+
+    synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    static class Key {
+        final String addr;
+        final UUID srv;
+        final UUID chr;
+
+        Key(String a, UUID s, UUID c) {
+            addr = a;
+            srv  = s;
+            chr  = c;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return addr.equals(k.addr)
+                && ((srv == null) ? k.srv == null : srv.equals(k.srv))
+                && chr.equals(k.chr);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = addr.hashCode();
+            h = h * 31 + ((srv == null) ? 0 : srv.hashCode());
+            return h * 31 + chr.hashCode();
+        }
+    }
+
+    static class Entry {
+        final byte[] value;
+        final long expiresAt;
+
+        Entry(byte[] v, long e) {
+            value = v;
+            expiresAt = e;
+        }
+    }
+}
@@ -24,6 +24,7 @@ import com.issc.gatt.GattDescriptor;
 import com.issc.gatt.GattService;
 import com.issc.util.Log;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
@@ -41,14 +42,39 @@ public class AospGatt implements Gatt {
     private BluetoothGatt mGatt;
     private BluetoothDevice mDevice;
     private Listener mListener;
+    private AospGattAdapter mOwner;
+    private int mMtu = MTU_DEFAULT;
+
+    /* wrappers of the last discovery, built on first use */
+    private volatile AospGattModel mModel;
+
+    /* BluetoothGatt.requestMtu is available since API 21 */
+    private static Method sRequestMtu;
+
+    static {
+        try {
+            sRequestMtu = BluetoothGatt.class.getMethod("requestMtu", int.class);
+        } catch (NoSuchMethodException e) {
+            sRequestMtu = null;
+        }
+    }
 
     public AospGatt(BluetoothGatt gatt) {
+        this(gatt, null);
+    }
+
+    /* owner will be told once closed */
+    AospGatt(BluetoothGatt gatt, AospGattAdapter owner) {
         mGatt = gatt;
+        mOwner = owner;
     }
 
     @Override
     public void close() {
         mGatt.close();
+        if (mOwner != null) {
+            mOwner.forget(mGatt);
+        }
     }
 
     @Override
@@ -63,6 +89,8 @@ public class AospGatt implements Gatt {
 
     @Override
     public boolean discoverServices() {
+        // the platform drops its services once discovery starts
+        resetModel();
         return mGatt.discoverServices();
     }
 
@@ -73,18 +101,48 @@ public class AospGatt implements Gatt {
 
     @Override
     public GattService getService(UUID uuid) {
-        return new AospGattService(mGatt.getService(uuid));
+        return getModel().getService(uuid);
     }
 
     @Override
     public List<GattService> getServices() {
-        List<BluetoothGattService> srvs = mGatt.getServices();
-        ArrayList<GattService> list = new ArrayList<GattService>();
-        for (BluetoothGattService srv: srvs) {
-            list.add(new AospGattService(srv));
+        return getModel().getServices();
+    }
+
+    AospGattModel getModel() {
+        AospGattModel model = mModel;
+        if (model == null) {
+            synchronized(this) {
+                if (mModel == null) {
+                    mModel = new AospGattModel(mGatt.getServices());
+                }
+                model = mModel;
+            }
+        }
+        return model;
+    }
+
+    /* wrapper of a platform attribute from callbacks, which is the one of
+     * the model unless the attribute is not from the last discovery */
+    GattCharacteristic wrap(BluetoothGattCharacteristic chr) {
+        GattCharacteristic wrapper = getModel().find(chr);
+        if (wrapper == null) {
+            wrapper = new AospGattCharacteristic(chr);
+        }
+        return wrapper;
+    }
+
+    GattDescriptor wrap(BluetoothGattDescriptor dsc) {
+        GattDescriptor wrapper = getModel().find(dsc);
+        if (wrapper == null) {
+            wrapper = new AospGattDescriptor(dsc);
         }
+        return wrapper;
+    }
 
-        return list;
+    /* called once services are discovered, the model is built again */
+    void resetModel() {
+        mModel = null;
     }
 
     @Override
@@ -114,5 +172,30 @@ public class AospGatt implements Gatt {
     public boolean writeDescriptor(GattDescriptor dsc) {
         return mGatt.writeDescriptor((BluetoothGattDescriptor)dsc.getImpl());
     }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        if (sRequestMtu == null) {
+            Log.d("requestMtu is not supported by this platform");
+            return false;
+        }
+
+        try {
+            return (Boolean)sRequestMtu.invoke(mGatt, mtu);
+        } catch (Exception e) {
+            Log.w("requestMtu failed", e);
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized int getMtu() {
+        return mMtu;
+    }
+
+    /* called by callback once the MTU is negotiated */
+    synchronized void setMtu(int mtu) {
+        mMtu = mtu;
+    }
 }
 
@@ -28,6 +28,8 @@ import com.issc.util.Log;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -43,10 +45,10 @@ public class AospGattAdapter implements GattAdapter {
 
     private Context mContext;
 
-    private AospGatt mGattInterface;
-    private BluetoothGatt mGatt;
+    /* one wrapper for each connection, so callbacks of a device come with
+     * the same Gatt that connectGatt returned */
+    private ConcurrentMap<BluetoothGatt, AospGatt> mGatts;
     private BluetoothGattCallback mCallback;
-    private BluetoothDevice mDevice;
     private Listener mListener;
     private ScanCallback mScanCallback;
 
@@ -55,6 +57,7 @@ public class AospGattAdapter implements GattAdapter {
     public AospGattAdapter(Context ctx, Listener listener) {
         mContext = ctx;
         mLock = new Object();
+        mGatts = new ConcurrentHashMap<BluetoothGatt, AospGatt>();
         mCallback = new AospCallback();
         mScanCallback = new ScanCallback();
         mListener = listener;
@@ -63,9 +66,28 @@ public class AospGattAdapter implements GattAdapter {
     @Override
     public Gatt connectGatt(Context ctx, boolean autoConnect, Listener listener, BluetoothDevice dev) {
         mListener = listener;
-        mGatt = dev.connectGatt(ctx, autoConnect, mCallback);
-        mGattInterface = new AospGatt(mGatt);
-        return mGattInterface;
+        BluetoothGatt gatt = dev.connectGatt(ctx, autoConnect, mCallback);
+        if (gatt == null) {
+            return null;
+        }
+        return wrap(gatt);
+    }
+
+    /* callbacks might arrive before connectGatt returns */
+    private AospGatt wrap(BluetoothGatt gatt) {
+        AospGatt wrapper = mGatts.get(gatt);
+        if (wrapper == null) {
+            wrapper = new AospGatt(gatt, this);
+            AospGatt existing = mGatts.putIfAbsent(gatt, wrapper);
+            if (existing != null) {
+                wrapper = existing;
+            }
+        }
+        return wrapper;
+    }
+
+    void forget(BluetoothGatt gatt) {
+        mGatts.remove(gatt);
     }
 
 
@@ -117,74 +139,86 @@ public class AospGattAdapter implements GattAdapter {
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt Gatt, BluetoothGattCharacteristic chrc) {
-            GattCharacteristic c = new AospGattCharacteristic(chrc);
-            mListener.onCharacteristicChanged(mGattInterface, c);
+            // the hot path, nothing is allocated for a notification
+            AospGatt gatt = wrap(Gatt);
+            mListener.onCharacteristicChanged(gatt, gatt.wrap(chrc));
         }
 
         @Override
         public void onCharacteristicRead(BluetoothGatt Gatt, BluetoothGattCharacteristic chrc, int status) {
-            GattCharacteristic c = new AospGattCharacteristic(chrc);
+            GattCharacteristic c = wrap(Gatt).wrap(chrc);
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                mListener.onCharacteristicRead(mGattInterface, c, Gatt.GATT_SUCCESS);
+                mListener.onCharacteristicRead(wrap(Gatt), c, Gatt.GATT_SUCCESS);
             } else {
-                mListener.onCharacteristicRead(mGattInterface, c, status);
+                mListener.onCharacteristicRead(wrap(Gatt), c, status);
             }
         }
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt Gatt, BluetoothGattCharacteristic chrc, int status) {
-            GattCharacteristic c = new AospGattCharacteristic(chrc);
+            GattCharacteristic c = wrap(Gatt).wrap(chrc);
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                mListener.onCharacteristicWrite(mGattInterface, c, Gatt.GATT_SUCCESS);
+                mListener.onCharacteristicWrite(wrap(Gatt), c, Gatt.GATT_SUCCESS);
             } else {
-                mListener.onCharacteristicWrite(mGattInterface, c, status);
+                mListener.onCharacteristicWrite(wrap(Gatt), c, status);
             }
         }
 
         @Override
         public void onConnectionStateChange(BluetoothGatt Gatt, int status, int newState) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                mListener.onConnectionStateChange(mGattInterface, Gatt.GATT_SUCCESS, newState);
+                mListener.onConnectionStateChange(wrap(Gatt), Gatt.GATT_SUCCESS, newState);
             } else {
-                mListener.onConnectionStateChange(mGattInterface, status, newState);
+                mListener.onConnectionStateChange(wrap(Gatt), status, newState);
             }
         }
 
         @Override
         public void onDescriptorRead(BluetoothGatt Gatt, BluetoothGattDescriptor descriptor, int status) {
-            GattDescriptor dsc = new AospGattDescriptor(descriptor);
+            GattDescriptor dsc = wrap(Gatt).wrap(descriptor);
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                mListener.onDescriptorRead(mGattInterface, dsc, Gatt.GATT_SUCCESS);
+                mListener.onDescriptorRead(wrap(Gatt), dsc, Gatt.GATT_SUCCESS);
             } else {
-                mListener.onDescriptorRead(mGattInterface, dsc, status);
+                mListener.onDescriptorRead(wrap(Gatt), dsc, status);
             }
         }
 
         @Override
         public void onDescriptorWrite(BluetoothGatt Gatt, BluetoothGattDescriptor descriptor, int status) {
-            GattDescriptor dsc = new AospGattDescriptor(descriptor);
+            GattDescriptor dsc = wrap(Gatt).wrap(descriptor);
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                mListener.onDescriptorWrite(mGattInterface, dsc, Gatt.GATT_SUCCESS);
+                mListener.onDescriptorWrite(wrap(Gatt), dsc, Gatt.GATT_SUCCESS);
             } else {
-                mListener.onDescriptorWrite(mGattInterface, dsc, status);
+                mListener.onDescriptorWrite(wrap(Gatt), dsc, status);
             }
         }
 
         @Override
         public void onReadRemoteRssi(BluetoothGatt Gatt, int rssi, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                mListener.onReadRemoteRssi(mGattInterface, rssi, Gatt.GATT_SUCCESS);
+                mListener.onReadRemoteRssi(wrap(Gatt), rssi, Gatt.GATT_SUCCESS);
             } else {
-                mListener.onReadRemoteRssi(mGattInterface, rssi, status);
+                mListener.onReadRemoteRssi(wrap(Gatt), rssi, status);
             }
         }
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            wrap(gatt).resetModel();
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mListener.onServicesDiscovered(wrap(gatt), Gatt.GATT_SUCCESS);
+            } else {
+                mListener.onServicesDiscovered(wrap(gatt), status);
+            }
+        }
+
+        /* since API 21, so it does not override anything at build time */
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                mListener.onServicesDiscovered(mGattInterface, Gatt.GATT_SUCCESS);
+                wrap(gatt).setMtu(mtu);
+                mListener.onMtuChanged(wrap(gatt), mtu, Gatt.GATT_SUCCESS);
             } else {
-                mListener.onServicesDiscovered(mGattInterface, status);
+                mListener.onMtuChanged(wrap(gatt), mtu, status);
             }
         }
     }
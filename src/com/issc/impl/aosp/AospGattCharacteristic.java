@@ -23,7 +23,10 @@ import com.issc.gatt.GattService;
 import com.issc.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import android.bluetooth.BluetoothDevice;
@@ -33,11 +36,41 @@ import android.bluetooth.BluetoothGattDescriptor;
 public class AospGattCharacteristic implements GattCharacteristic {
 
     private BluetoothGattCharacteristic mChr;
+    private GattService mSrv;
     private List<GattDescriptor> mDscIfs;      // interfaces
+    private Map<UUID, GattDescriptor> mIndex;
+
+    /* position in the table of AospGattModel, -1 if not in any */
+    private int mHandle = -1;
 
     public AospGattCharacteristic(BluetoothGattCharacteristic chr) {
+        this(null, chr);
+    }
+
+    /* srv is the wrapper which holds this one, or null to wrap later */
+    AospGattCharacteristic(GattService srv, BluetoothGattCharacteristic chr) {
         mChr = chr;
-        mDscIfs = new ArrayList<GattDescriptor>();
+        mSrv = srv;
+
+        List<BluetoothGattDescriptor> dscs = chr.getDescriptors();
+        List<GattDescriptor> list = new ArrayList<GattDescriptor>(dscs.size());
+        mIndex = new HashMap<UUID, GattDescriptor>();
+        for (BluetoothGattDescriptor dsc: dscs) {
+            GattDescriptor wrapper = new AospGattDescriptor(this, dsc);
+            list.add(wrapper);
+            if (!mIndex.containsKey(wrapper.getUuid())) {
+                mIndex.put(wrapper.getUuid(), wrapper);
+            }
+        }
+        mDscIfs = Collections.unmodifiableList(list);
+    }
+
+    int getHandle() {
+        return mHandle;
+    }
+
+    void setHandle(int handle) {
+        mHandle = handle;
     }
 
     @Override
@@ -46,26 +79,20 @@ public class AospGattCharacteristic implements GattCharacteristic {
     }
 
     @Override
-    public GattService getService() {
-        return new AospGattService(mChr.getService());
+    public synchronized GattService getService() {
+        if (mSrv == null) {
+            mSrv = new AospGattService(mChr.getService());
+        }
+        return mSrv;
     }
 
     @Override
     public GattDescriptor getDescriptor(UUID uuid) {
-        return new AospGattDescriptor(mChr.getDescriptor(uuid));
+        return mIndex.get(uuid);
     }
 
     @Override
     public List<GattDescriptor> getDescriptors() {
-        mDscIfs.clear();
-
-        /* Always reflect to the real implementation, we should not hold any cache.
-         * So the returned GattDescriptors always hold the BluetoothGattDescriptor
-         * from this GattCharacteristic. */
-        List<BluetoothGattDescriptor> dscs = mChr.getDescriptors();
-        for (BluetoothGattDescriptor dsc: dscs) {
-            mDscIfs.add(new AospGattDescriptor(dsc));
-        }
         return mDscIfs;
     }
 
@@ -99,6 +126,15 @@ public class AospGattCharacteristic implements GattCharacteristic {
         return mChr.setValue(value);
     }
 
+    @Override
+    public int getWriteType() {
+        if (mChr.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+            return WRITE_TYPE_NO_RESPONSE;
+        } else {
+            return WRITE_TYPE_DEFAULT;
+        }
+    }
+
     @Override
     public void setWriteType(int writeType) {
         if (writeType == WRITE_TYPE_NO_RESPONSE) {
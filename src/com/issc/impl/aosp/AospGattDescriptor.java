@@ -30,14 +30,24 @@ import android.bluetooth.BluetoothGattDescriptor;
 public class AospGattDescriptor implements GattDescriptor {
 
     private BluetoothGattDescriptor mDsc;
+    private GattCharacteristic mChr;
 
     public AospGattDescriptor(BluetoothGattDescriptor dsc) {
+        this(null, dsc);
+    }
+
+    /* chr is the wrapper which holds this one, or null to wrap later */
+    AospGattDescriptor(GattCharacteristic chr, BluetoothGattDescriptor dsc) {
         mDsc = dsc;
+        mChr = chr;
     }
 
     @Override
-    public GattCharacteristic getCharacteristic() {
-        return new AospGattCharacteristic(mDsc.getCharacteristic());
+    public synchronized GattCharacteristic getCharacteristic() {
+        if (mChr == null) {
+            mChr = new AospGattCharacteristic(mDsc.getCharacteristic());
+        }
+        return mChr;
     }
 
     @Override
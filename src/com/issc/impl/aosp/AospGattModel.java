@@ -0,0 +1,128 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.impl.aosp;
+
+import com.issc.gatt.GattCharacteristic;
+import com.issc.gatt.GattDescriptor;
+import com.issc.gatt.GattService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+/**
+ * Wrappers of every attribute of one discovery.
+ *
+ * It is built once services are discovered and never changes, so the
+ * same wrapper is returned for an attribute until the next discovery.
+ * Services are indexed by UUID, and characteristics are flattened into a
+ * table in discovery order, which follows their handles.
+ *
+ * Callbacks come with the platform attributes, which are found by
+ * identity here so no wrapper is made for each event.
+ */
+class AospGattModel {
+
+    private List<GattService> mServices;
+    private Map<UUID, AospGattService> mByUuid;
+    private AospGattCharacteristic[] mHandles;
+
+    /* platform attribute to its wrapper, only read once built */
+    private Map<BluetoothGattCharacteristic, AospGattCharacteristic> mChrs;
+    private Map<BluetoothGattDescriptor, GattDescriptor> mDscs;
+
+    AospGattModel(List<BluetoothGattService> srvs) {
+        List<GattService> list = new ArrayList<GattService>(srvs.size());
+        mByUuid = new HashMap<UUID, AospGattService>();
+        List<AospGattCharacteristic> handles = new ArrayList<AospGattCharacteristic>();
+        mChrs = new IdentityHashMap<BluetoothGattCharacteristic, AospGattCharacteristic>();
+        mDscs = new IdentityHashMap<BluetoothGattDescriptor, GattDescriptor>();
+
+        for (BluetoothGattService srv: srvs) {
+            AospGattService wrapper = new AospGattService(srv);
+            list.add(wrapper);
+            // BluetoothGatt.getService returns the first one as well
+            if (!mByUuid.containsKey(wrapper.getUuid())) {
+                mByUuid.put(wrapper.getUuid(), wrapper);
+            }
+
+            for (GattCharacteristic chr: wrapper.getCharacteristics()) {
+                AospGattCharacteristic c = (AospGattCharacteristic)chr;
+                c.setHandle(handles.size());
+                handles.add(c);
+                mChrs.put((BluetoothGattCharacteristic)c.getImpl(), c);
+
+                for (GattDescriptor dsc: c.getDescriptors()) {
+                    mDscs.put((BluetoothGattDescriptor)dsc.getImpl(), dsc);
+                }
+            }
+        }
+
+        mServices = Collections.unmodifiableList(list);
+        mHandles = handles.toArray(new AospGattCharacteristic[handles.size()]);
+    }
+
+    List<GattService> getServices() {
+        return mServices;
+    }
+
+    /**
+     * @return the first service of the UUID, or null if there is none.
+     */
+    GattService getService(UUID uuid) {
+        return mByUuid.get(uuid);
+    }
+
+    /**
+     * @param handle position in the table, see AospGattCharacteristic.getHandle
+     * @return null if it is out of the table.
+     */
+    AospGattCharacteristic characteristicAt(int handle) {
+        if (handle < 0 || handle >= mHandles.length) {
+            return null;
+        }
+        return mHandles[handle];
+    }
+
+    /**
+     * @return wrapper of the platform characteristic, or null if it is not
+     *         from this discovery.
+     */
+    AospGattCharacteristic find(BluetoothGattCharacteristic chr) {
+        return mChrs.get(chr);
+    }
+
+    /**
+     * @return wrapper of the platform descriptor, or null if it is not
+     *         from this discovery.
+     */
+    GattDescriptor find(BluetoothGattDescriptor dsc) {
+        return mDscs.get(dsc);
+    }
+
+    int getCharacteristicCount() {
+        return mHandles.length;
+    }
+}
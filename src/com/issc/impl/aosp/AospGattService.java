@@ -22,7 +22,10 @@ import com.issc.gatt.GattService;
 import com.issc.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import android.bluetooth.BluetoothDevice;
@@ -34,10 +37,24 @@ public class AospGattService implements GattService {
 
     private BluetoothGattService mSrv;
     private List<GattCharacteristic> mList;
+    private Map<UUID, GattCharacteristic> mIndex;
 
+    /* Characteristics of a discovered service do not change, so they are
+     * wrapped once and the same wrappers are returned every time. */
     public AospGattService(BluetoothGattService srv) {
         mSrv = srv;
-        mList = new ArrayList<GattCharacteristic>();
+
+        List<BluetoothGattCharacteristic> chrs = srv.getCharacteristics();
+        List<GattCharacteristic> list = new ArrayList<GattCharacteristic>(chrs.size());
+        mIndex = new HashMap<UUID, GattCharacteristic>();
+        for (BluetoothGattCharacteristic chr: chrs) {
+            GattCharacteristic wrapper = new AospGattCharacteristic(this, chr);
+            list.add(wrapper);
+            if (!mIndex.containsKey(wrapper.getUuid())) {
+                mIndex.put(wrapper.getUuid(), wrapper);
+            }
+        }
+        mList = Collections.unmodifiableList(list);
     }
 
     @Override
@@ -47,19 +64,11 @@ public class AospGattService implements GattService {
 
     @Override
     public GattCharacteristic getCharacteristic(UUID uuid) {
-        return new AospGattCharacteristic(mSrv.getCharacteristic(uuid));
+        return mIndex.get(uuid);
     }
 
     @Override
     public List<GattCharacteristic> getCharacteristics() {
-        mList.clear();
-
-        /* Always return current charactesristic, we do not hold any cache. */
-        List<BluetoothGattCharacteristic> chrs = mSrv.getCharacteristics();
-        for (BluetoothGattCharacteristic chr: chrs) {
-            mList.add(new AospGattCharacteristic(chr));
-        }
-
         return mList;
     }
 
@@ -78,4 +87,3 @@ public class AospGattService implements GattService {
         return mSrv.getUuid();
     }
 }
-
@@ -0,0 +1,115 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.impl.cache;
+
+import com.issc.gatt.GattCharacteristic;
+import com.issc.gatt.GattDescriptor;
+import com.issc.gatt.GattService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A characteristic of a cached attribute table. It has no value, and could
+ * not be changed since no request could be made by it.
+ */
+class CachedGattCharacteristic implements GattCharacteristic {
+
+    private GattService mSrv;
+    private UUID mUuid;
+    private int mProperties;
+    private int mPermissions;
+    private List<GattDescriptor> mDscs;
+
+    CachedGattCharacteristic(GattService srv, UUID uuid, int properties, int permissions) {
+        mSrv = srv;
+        mUuid = uuid;
+        mProperties = properties;
+        mPermissions = permissions;
+        mDscs = new ArrayList<GattDescriptor>();
+    }
+
+    void addDescriptor(GattDescriptor dsc) {
+        mDscs.add(dsc);
+    }
+
+    @Override
+    public Object getImpl() {
+        return this;
+    }
+
+    @Override
+    public GattService getService() {
+        return mSrv;
+    }
+
+    @Override
+    public GattDescriptor getDescriptor(UUID uuid) {
+        for (GattDescriptor dsc: mDscs) {
+            if (dsc.getUuid().equals(uuid)) {
+                return dsc;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<GattDescriptor> getDescriptors() {
+        return Collections.unmodifiableList(mDscs);
+    }
+
+    @Override
+    public Integer getIntValue(int type, int offset) {
+        return null;
+    }
+
+    @Override
+    public int getPermissions() {
+        return mPermissions;
+    }
+
+    @Override
+    public int getProperties() {
+        return mProperties;
+    }
+
+    @Override
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    @Override
+    public byte[] getValue() {
+        return null;
+    }
+
+    @Override
+    public boolean setValue(byte[] value) {
+        return false;
+    }
+
+    @Override
+    public int getWriteType() {
+        return WRITE_TYPE_DEFAULT;
+    }
+
+    @Override
+    public void setWriteType(int writeType) {
+    }
+}
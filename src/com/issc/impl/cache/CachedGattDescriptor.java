@@ -0,0 +1,73 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.impl.cache;
+
+import com.issc.gatt.GattCharacteristic;
+import com.issc.gatt.GattDescriptor;
+
+import java.util.UUID;
+
+/**
+ * A descriptor of a cached attribute table, it has no value.
+ */
+class CachedGattDescriptor implements GattDescriptor {
+
+    private GattCharacteristic mChr;
+    private UUID mUuid;
+    private int mPermissions;
+
+    CachedGattDescriptor(GattCharacteristic chr, UUID uuid, int permissions) {
+        mChr = chr;
+        mUuid = uuid;
+        mPermissions = permissions;
+    }
+
+    @Override
+    public Object getImpl() {
+        return this;
+    }
+
+    @Override
+    public GattCharacteristic getCharacteristic() {
+        return mChr;
+    }
+
+    @Override
+    public byte[] getConstantBytes(int type) {
+        return null;
+    }
+
+    @Override
+    public int getPermissions() {
+        return mPermissions;
+    }
+
+    @Override
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    @Override
+    public byte[] getValue() {
+        return null;
+    }
+
+    @Override
+    public boolean setValue(byte[] value) {
+        return false;
+    }
+}
@@ -0,0 +1,82 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.impl.cache;
+
+import com.issc.gatt.GattCharacteristic;
+import com.issc.gatt.GattService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A service of a cached attribute table, detached from any connection.
+ */
+class CachedGattService implements GattService {
+
+    private UUID mUuid;
+    private int mType;
+    private int mInstanceId;
+    private List<GattCharacteristic> mChrs;
+
+    CachedGattService(UUID uuid, int type, int instanceId) {
+        mUuid = uuid;
+        mType = type;
+        mInstanceId = instanceId;
+        mChrs = new ArrayList<GattCharacteristic>();
+    }
+
+    void addCharacteristic(GattCharacteristic chr) {
+        mChrs.add(chr);
+    }
+
+    @Override
+    public Object getImpl() {
+        return this;
+    }
+
+    @Override
+    public GattCharacteristic getCharacteristic(UUID uuid) {
+        for (GattCharacteristic chr: mChrs) {
+            if (chr.getUuid().equals(uuid)) {
+                return chr;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<GattCharacteristic> getCharacteristics() {
+        return Collections.unmodifiableList(mChrs);
+    }
+
+    @Override
+    public int getInstanceId() {
+        return mInstanceId;
+    }
+
+    @Override
+    public int getType() {
+        return mType;
+    }
+
+    @Override
+    public UUID getUuid() {
+        return mUuid;
+    }
+}
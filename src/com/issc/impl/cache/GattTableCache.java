@@ -0,0 +1,333 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.impl.cache;
+
+import com.issc.gatt.GattCharacteristic;
+import com.issc.gatt.GattDescriptor;
+import com.issc.gatt.GattService;
+import com.issc.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/**
+ * Attribute tables of devices which were discovered before, kept on disk
+ * by device address.
+ *
+ * A loaded table could be shown at once while discovery runs, but its
+ * attributes are detached from any connection so no request could be made
+ * by them. Once discovery is done, {@link #update} replaces the table if
+ * anything changed.
+ *
+ * Files are only touched by the thread of the cache, results are given to
+ * callbacks in that thread.
+ *
+ * Each file is a small binary: services, their characteristics and
+ * descriptors in order, with properties and permissions. UUIDs derived
+ * from the Bluetooth base UUID take 2 or 4 bytes instead of 16.
+ */
+public class GattTableCache {
+
+    private final static int MAGIC   = 0x47415454; // GATT
+    private final static int VERSION = 1;
+
+    private final static int UUID_16  = 0;
+    private final static int UUID_32  = 1;
+    private final static int UUID_128 = 2;
+
+    /* 0000xxxx-0000-1000-8000-00805F9B34FB */
+    private final static long BASE_MSB = 0x0000000000001000L;
+    private final static long BASE_LSB = 0x800000805F9B34FBL;
+
+    private File mDir;
+    private Handler mHandler;
+
+    /* encoded tables which are known, keyed by address. Only touched by
+     * the thread of the cache */
+    private Map<String, byte[]> mTables;
+
+    public GattTableCache(File dir) {
+        mDir = dir;
+        mTables = new HashMap<String, byte[]>();
+
+        HandlerThread thread = new HandlerThread("GattTableCache");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Load the cached table, the callback gets null if there is none.
+     */
+    public void load(final String address, final LoadCallback callback) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                callback.onLoaded(address, loadNow(address));
+            }
+        });
+    }
+
+    /**
+     * Keep the discovered table if it is not the cached one. The callback
+     * could be null.
+     */
+    public void update(final String address,
+            final List<GattService> services,
+            final UpdateCallback callback) {
+
+        mHandler.post(new Runnable() {
+            public void run() {
+                boolean changed = updateNow(address, services);
+                if (callback != null) {
+                    callback.onUpdated(address, changed);
+                }
+            }
+        });
+    }
+
+    public void remove(final String address) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                mTables.remove(address);
+                fileOf(address).delete();
+            }
+        });
+    }
+
+    /* following functions run in the thread of cache */
+
+    private List<GattService> loadNow(String address) {
+        byte[] table = read(address);
+        if (table == null) {
+            return null;
+        }
+
+        try {
+            return decode(new DataInputStream(new ByteArrayInputStream(table)));
+        } catch (IOException e) {
+            Log.w("broken attribute table of " + address + ", " + e);
+            mTables.remove(address);
+            fileOf(address).delete();
+            return null;
+        }
+    }
+
+    /* true if it differs from the cached table, or there was none */
+    private boolean updateNow(String address, List<GattService> services) {
+        byte[] table;
+        try {
+            table = encode(services);
+        } catch (IOException e) {
+            Log.w("could not encode attribute table, " + e);
+            return true;
+        }
+
+        if (Arrays.equals(table, read(address))) {
+            return false;
+        }
+
+        mTables.put(address, table);
+        write(fileOf(address), table);
+        return true;
+    }
+
+    private File fileOf(String address) {
+        return new File(mDir, address.replace(":", "") + ".bin");
+    }
+
+    /* from memory, or from disk at the first time */
+    private byte[] read(String address) {
+        if (mTables.containsKey(address)) {
+            return mTables.get(address);
+        }
+
+        byte[] table = null;
+        File file = fileOf(address);
+        if (file.exists()) {
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                table = new byte[(int)file.length()];
+                new DataInputStream(in).readFully(table);
+            } catch (IOException e) {
+                Log.w("could not read " + file + ", " + e);
+                table = null;
+            } finally {
+                close(in);
+            }
+        }
+
+        mTables.put(address, table);
+        return table;
+    }
+
+    /* replace the file at once */
+    private void write(File file, byte[] table) {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Log.w("could not create " + mDir);
+            return;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(table);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.w("could not rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w("could not write " + file + ", " + e);
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(java.io.Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    static byte[] encode(List<GattService> services) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+
+        out.writeShort(services.size());
+        for (GattService srv: services) {
+            writeUuid(out, srv.getUuid());
+            out.writeByte(srv.getType());
+            out.writeShort(srv.getInstanceId());
+
+            List<GattCharacteristic> chrs = srv.getCharacteristics();
+            out.writeShort(chrs.size());
+            for (GattCharacteristic chr: chrs) {
+                writeUuid(out, chr.getUuid());
+                out.writeByte(chr.getProperties());
+                out.writeShort(chr.getPermissions());
+
+                List<GattDescriptor> dscs = chr.getDescriptors();
+                out.writeByte(dscs.size());
+                for (GattDescriptor dsc: dscs) {
+                    writeUuid(out, dsc.getUuid());
+                    out.writeShort(dsc.getPermissions());
+                }
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static List<GattService> decode(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+            throw new IOException("unknown format");
+        }
+
+        int srvCount = in.readUnsignedShort();
+        List<GattService> services = new ArrayList<GattService>(srvCount);
+        for (int i = 0; i < srvCount; i++) {
+            UUID uuid = readUuid(in);
+            int type = in.readUnsignedByte();
+            int instance = in.readUnsignedShort();
+            CachedGattService srv = new CachedGattService(uuid, type, instance);
+
+            int chrCount = in.readUnsignedShort();
+            for (int j = 0; j < chrCount; j++) {
+                UUID chrUuid = readUuid(in);
+                int properties = in.readUnsignedByte();
+                int permissions = in.readUnsignedShort();
+                CachedGattCharacteristic chr =
+                    new CachedGattCharacteristic(srv, chrUuid, properties, permissions);
+
+                int dscCount = in.readUnsignedByte();
+                for (int k = 0; k < dscCount; k++) {
+                    UUID dscUuid = readUuid(in);
+                    chr.addDescriptor(new CachedGattDescriptor(chr, dscUuid,
+                                in.readUnsignedShort()));
+                }
+                srv.addCharacteristic(chr);
+            }
+            services.add(srv);
+        }
+        return services;
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        if (lsb != BASE_LSB || (msb & 0xFFFFFFFFL) != BASE_MSB) {
+            out.writeByte(UUID_128);
+            out.writeLong(msb);
+            out.writeLong(lsb);
+        } else if ((msb >>> 48) == 0) {
+            out.writeByte(UUID_16);
+            out.writeShort((int)(msb >>> 32));
+        } else {
+            out.writeByte(UUID_32);
+            out.writeInt((int)(msb >>> 32));
+        }
+    }
+
+    private static UUID readUuid(DataInputStream in) throws IOException {
+        int form = in.readUnsignedByte();
+        if (form == UUID_16) {
+            return new UUID(((long)in.readUnsignedShort() << 32) | BASE_MSB, BASE_LSB);
+        } else if (form == UUID_32) {
+            return new UUID(((in.readInt() & 0xFFFFFFFFL) << 32) | BASE_MSB, BASE_LSB);
+        } else if (form == UUID_128) {
+            return new UUID(in.readLong(), in.readLong());
+        }
+        throw new IOException("unknown UUID form " + form);
+    }
+
+    public interface LoadCallback {
+        /**
+         * @param services of the cached table, or null if there is none.
+         */
+        public void onLoaded(String address, List<GattService> services);
+    }
+
+    public interface UpdateCallback {
+        /**
+         * @param changed true if the table differs from the cached one, or
+         *        there was none.
+         */
+        public void onUpdated(String address, boolean changed);
+    }
+}
@@ -23,8 +23,10 @@ import com.issc.gatt.GattService;
 import com.issc.util.Log;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import android.bluetooth.BluetoothGattCharacteristic;
@@ -34,6 +36,7 @@ public class FakeGattCharacteristic implements GattCharacteristic {
     private UUID mUuid;
     private GattService mSrv;
     private List<GattDescriptor> mDescs;
+    private Map<UUID, GattDescriptor> mIndex;
     private byte[] mValue;
 
     private int mWriteType;
@@ -48,6 +51,7 @@ public class FakeGattCharacteristic implements GattCharacteristic {
         mSrv = srv;
         mUuid = uuid;
         mDescs = new ArrayList<GattDescriptor>();
+        mIndex = new HashMap<UUID, GattDescriptor>();
         if (descs != null) {
             createDescriptors(mDescs, descs);
         }
@@ -57,7 +61,11 @@ public class FakeGattCharacteristic implements GattCharacteristic {
         Iterator<UUID> it = uuids.iterator();
         while(it.hasNext()) {
             UUID uuid = it.next();
-            container.add(new FakeGattDescriptor(this, uuid));
+            GattDescriptor desc = new FakeGattDescriptor(this, uuid);
+            container.add(desc);
+            if (!mIndex.containsKey(uuid)) {
+                mIndex.put(uuid, desc);
+            }
         }
     }
 
@@ -73,15 +81,7 @@ public class FakeGattCharacteristic implements GattCharacteristic {
 
     @Override
     public GattDescriptor getDescriptor(UUID uuid) {
-        Iterator<GattDescriptor> it = mDescs.iterator();
-        while(it.hasNext()) {
-            GattDescriptor desc = it.next();
-            if (desc.getUuid().equals(uuid)) {
-                return desc;
-            }
-        }
-
-        return null;
+        return mIndex.get(uuid);
     }
 
     @Override
@@ -123,6 +123,15 @@ public class FakeGattCharacteristic implements GattCharacteristic {
         return true;
     }
 
+    @Override
+    public int getWriteType() {
+        if (mWriteType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+            return WRITE_TYPE_NO_RESPONSE;
+        } else {
+            return WRITE_TYPE_DEFAULT;
+        }
+    }
+
     @Override
     public void setWriteType(int writeType) {
         if (writeType == WRITE_TYPE_NO_RESPONSE) {
@@ -143,5 +143,16 @@ public class FakeGattDeviceInfo implements Gatt {
         Log.d("FakeGatt: write descriptor: " + Util.BytesToHex(dsc.getValue()));
         return true;
     }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        Log.d("FakeGatt: request mtu " + mtu + ", not supported");
+        return false;
+    }
+
+    @Override
+    public int getMtu() {
+        return MTU_DEFAULT;
+    }
 }
 
@@ -41,13 +41,18 @@ public class FakeGattDeviceTransparent implements Gatt {
 
     private final static long DELAY = 200; // 200ms
 
+    /* the largest MTU this fake device accepts */
+    private final static int MTU_MAX = 247;
+
     private final static String KEY_CHR_UUID = "_key_for_picking_characteristic_by_uuid_";
     private final static String KEY_DSC_UUID = "_key_for_picking_descriptor_by_uuid_";
+    private final static String KEY_VALUE    = "_key_for_written_value_";
     private final static int READ_CHR     = 0x0010;
     private final static int READ_DSC     = 0x0011;
     private final static int WRITE_CHR    = 0x0012;
     private final static int WRITE_DSC    = 0x0013;
     private final static int SET_CHR_NOTI = 0x0014;
+    private final static int REQUEST_MTU  = 0x0015;
 
     private FakeGattService mService;
     private ArrayList<GattService> mSrvs;
@@ -55,6 +60,10 @@ public class FakeGattDeviceTransparent implements Gatt {
     private Listener mListener;
     private Handler mHandler;
     private HandlerThread mThread;
+    private int mMtu = MTU_DEFAULT;
+
+    /* like a real device, echoes what written to Rx by notifying Tx */
+    private boolean mNotifying = false;
 
     public FakeGattDeviceTransparent(BluetoothDevice dev, Listener listener) {
         mDevice = dev;
@@ -155,6 +164,7 @@ public class FakeGattDeviceTransparent implements Gatt {
         Log.d("FakeGatt: set characteristic notification: " + enable);
 
         Message msg = mHandler.obtainMessage(SET_CHR_NOTI);
+        msg.arg1 = enable ? 1 : 0;
         Bundle data = msg.getData();
         data.putSerializable(KEY_CHR_UUID, chr.getUuid());
         mHandler.sendMessageDelayed(msg, DELAY);
@@ -169,6 +179,8 @@ public class FakeGattDeviceTransparent implements Gatt {
         Message msg = mHandler.obtainMessage(WRITE_CHR);
         Bundle data = msg.getData();
         data.putSerializable(KEY_CHR_UUID, chr.getUuid());
+        // value of chr would be changed by next write, keep what it is now
+        data.putByteArray(KEY_VALUE, chr.getValue());
         mHandler.sendMessageDelayed(msg, DELAY);
 
         return true;
@@ -187,6 +199,22 @@ public class FakeGattDeviceTransparent implements Gatt {
         return true;
     }
 
+    @Override
+    public boolean requestMtu(int mtu) {
+        Log.d("FakeGatt: request mtu " + mtu);
+
+        Message msg = mHandler.obtainMessage(REQUEST_MTU);
+        msg.arg1 = mtu;
+        mHandler.sendMessageDelayed(msg, DELAY);
+
+        return true;
+    }
+
+    @Override
+    public synchronized int getMtu() {
+        return mMtu;
+    }
+
     class TransferHandler extends Handler {
         TransferHandler(Looper looper) {
             super(looper);
@@ -209,12 +237,23 @@ public class FakeGattDeviceTransparent implements Gatt {
                 GattCharacteristic chr = mService.getCharacteristic(uuidChr);
                 mListener.onCharacteristicWrite(
                         FakeGattDeviceTransparent.this, chr, Gatt.GATT_SUCCESS);
+                if (uuidChr.equals(Bluebit.CHR_ISSC_TRANS_RX)) {
+                    echo(msg.getData().getByteArray(KEY_VALUE));
+                }
             } else if (tag == WRITE_DSC) {
                 GattCharacteristic chr = mService.getCharacteristic(uuidChr);
                 GattDescriptor dsc = chr.getDescriptor(uuidDsc);
                 mListener.onDescriptorWrite(
                         FakeGattDeviceTransparent.this, dsc, Gatt.GATT_SUCCESS);
+            } else if (tag == REQUEST_MTU) {
+                int mtu = Math.max(MTU_DEFAULT, Math.min(msg.arg1, MTU_MAX));
+                synchronized(FakeGattDeviceTransparent.this) {
+                    mMtu = mtu;
+                }
+                mListener.onMtuChanged(
+                        FakeGattDeviceTransparent.this, mtu, Gatt.GATT_SUCCESS);
             } else if (tag == SET_CHR_NOTI) {
+                mNotifying = (msg.arg1 != 0);
                 GattCharacteristic chr = mService.getCharacteristic(uuidChr);
                 mListener.onCharacteristicChanged(
                         FakeGattDeviceTransparent.this, chr);
@@ -222,6 +261,15 @@ public class FakeGattDeviceTransparent implements Gatt {
                 Log.e("Oops, message with unknown tag");
             }
         }
+
+        private void echo(byte[] value) {
+            if (!mNotifying || value == null) {
+                return;
+            }
+            GattCharacteristic tx = mService.getCharacteristic(Bluebit.CHR_ISSC_TRANS_TX);
+            tx.setValue(value);
+            mListener.onCharacteristicChanged(FakeGattDeviceTransparent.this, tx);
+        }
     }
 
  }
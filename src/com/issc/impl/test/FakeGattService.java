@@ -22,8 +22,9 @@ import com.issc.gatt.GattService;
 import com.issc.util.Log;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import android.bluetooth.BluetoothDevice;
@@ -37,21 +38,26 @@ public class FakeGattService implements GattService {
 
     private UUID mUuid;
     private List<GattCharacteristic> mChrcs;
+    private Map<UUID, GattCharacteristic> mIndex;
     private int mType;
     private int mInstanceId;
 
     public FakeGattService(UUID uuid) {
         mUuid = uuid;
         mChrcs = new ArrayList<GattCharacteristic>();
+        mIndex = new HashMap<UUID, GattCharacteristic>();
         mInstanceId = COUNTER++;
     }
 
     public void addCharacteristic(FakeGattCharacteristic chrc) {
         mChrcs.add(chrc);
+        if (!mIndex.containsKey(chrc.getUuid())) {
+            mIndex.put(chrc.getUuid(), chrc);
+        }
     }
 
     public void addCharacteristic(UUID uuid, List<UUID> descs) {
-        mChrcs.add(new FakeGattCharacteristic(this, uuid, descs));
+        addCharacteristic(new FakeGattCharacteristic(this, uuid, descs));
     }
 
     @Override
@@ -61,15 +67,7 @@ public class FakeGattService implements GattService {
 
     @Override
     public GattCharacteristic getCharacteristic(UUID uuid) {
-        Iterator<GattCharacteristic> it = mChrcs.iterator();
-        while(it.hasNext()) {
-            GattCharacteristic chrc = it.next();
-            if (chrc.getUuid().equals(uuid)) {
-                return chrc;
-            }
-        }
-
-        return null;
+        return mIndex.get(uuid);
     }
 
     @Override
@@ -20,6 +20,7 @@ import com.issc.Bluebit;
 import com.issc.gatt.Gatt;
 import com.issc.gatt.GattCharacteristic;
 import com.issc.gatt.GattService;
+import com.issc.impl.GattScheduler;
 import com.issc.impl.LeService;
 import com.issc.impl.AlgorithmAIO;
 import com.issc.impl.GattTransaction;
@@ -52,7 +53,6 @@ import android.widget.ToggleButton;
 
 public class ActivityAIO extends Activity
     implements SeekBar.OnSeekBarChangeListener,
-    TransactionQueue.Consumer<GattTransaction>,
     AlgorithmAIO.Controllable {
 
     private BluetoothDevice mDevice;
@@ -76,9 +76,14 @@ public class ActivityAIO extends Activity
     private ToggleButton[] mToggles;
 
     private TransactionQueue mQueue;
+    /* name of the queue in scheduler of LeService */
+    private final static String CLIENT = "AIO";
 
     private final static int NUM = 7;
 
+    /* a light value is useless if it could not be sent in time */
+    private final static long LIGHT_LIFETIME = 1000; // ms
+
     private final static int CONNECTION_DIALOG = 1;
     private final static int AUTOMATION_DIALOG = 2;
 
@@ -97,8 +102,6 @@ public class ActivityAIO extends Activity
         mGreen.setOnSeekBarChangeListener(this);
         mBlue.setOnSeekBarChangeListener(this);
 
-        mQueue = new TransactionQueue(this);
-
         mDevice = getIntent().getParcelableExtra(Bluebit.CHOSEN_DEVICE);
         mServices = new ArrayList<GattService>();
         mViewHandler = new ViewHandler();
@@ -112,7 +115,6 @@ public class ActivityAIO extends Activity
     @Override
     public void onDestroy() {
         super.onDestroy();
-        mQueue.clear();
         mViewHandler.removeCallbacksAndMessages(null);
     }
 
@@ -125,8 +127,8 @@ public class ActivityAIO extends Activity
     @Override
     protected void onPause() {
         super.onPause();
-        mQueue.clear();
-        mService.rmListener(mListener);
+        releaseQueue();
+        mService.unsubscribe(mListener);
         mService = null;
         unbindService(mConn);
     }
@@ -152,6 +154,20 @@ public class ActivityAIO extends Activity
         return null;
     }
 
+    /* pending lights are kept in LeService while this activity is
+     * recreated, and dropped once it leaves */
+    private void releaseQueue() {
+        GattScheduler scheduler = mService.getScheduler(mDevice);
+        if (mQueue == null || scheduler == null) {
+            return;
+        }
+
+        if (!isChangingConfigurations()) {
+            scheduler.release(CLIENT);
+        }
+        mQueue = null;
+    }
+
     private void onConnected() {
         List<GattService> list = mService.getServices(mDevice);
         if ((list == null) || (list.size() == 0)) {
@@ -164,7 +180,9 @@ public class ActivityAIO extends Activity
 
     private void onDisconnected() {
         Log.d("automation io activity disconnected, closing");
-        mQueue.clear();
+        if (mQueue != null) {
+            mQueue.clear();
+        }
         this.setResult(Bluebit.RESULT_REMOTE_DISCONNECT);
         this.finish();
     }
@@ -290,6 +308,8 @@ public class ActivityAIO extends Activity
         GattCharacteristic chr = srv.getCharacteristic(Bluebit.CHR_DIGITAL_OUT);
 
         GattTransaction t = new GattTransaction(chr, ctrl);
+        t.coalesce = true;
+        t.expireAfter(LIGHT_LIFETIME);
         mQueue.add(t);
     }
 
@@ -297,21 +317,29 @@ public class ActivityAIO extends Activity
     public void onControllPWM(int r, int g, int b, byte[][] ctrl) {
         Log.d(String.format("To set: R=%d, G=%d, B=%d", r, g, b));
         GattTransaction t = new GattTransaction(mChrCustomAOut1, ctrl[0], 200);
+        t.coalesce = true;
+        t.expireAfter(LIGHT_LIFETIME);
         Log.d(String.format("desc:0x%02x 0x%02x 0x%02x 0x%02x", ctrl[0][0], ctrl[0][1], ctrl[0][2], ctrl[0][3]));
         mQueue.add(t);
         for (int i = 1; i < ctrl.length; i++) {
             if (r != 0) {
                 GattTransaction c = new GattTransaction(mChrAOut1, ctrl[i], 200);
+                c.coalesce = true;
+                c.expireAfter(LIGHT_LIFETIME);
                 mQueue.add(c);
                 Log.d(String.format("[%d(R)]:0x%02x 0x%02x", i, ctrl[i][0], ctrl[i][1]));
                 r = 0;
             } else if (g != 0) {
                 GattTransaction c = new GattTransaction(mChrAOut2, ctrl[i], 200);
+                c.coalesce = true;
+                c.expireAfter(LIGHT_LIFETIME);
                 mQueue.add(c);
                 Log.d(String.format("[%d(G)]:0x%02x 0x%02x", i, ctrl[i][0], ctrl[i][1]));
                 g = 0;
             } else if (b != 0) {
                 GattTransaction c = new GattTransaction(mChrAOut3, ctrl[i], 200);
+                c.coalesce = true;
+                c.expireAfter(LIGHT_LIFETIME);
                 mQueue.add(c);
                 Log.d(String.format("[%d(B)]:0x%02x 0x%02x", i, ctrl[i][0], ctrl[i][1]));
                 b = 0;
@@ -321,7 +349,8 @@ public class ActivityAIO extends Activity
 
     @Override
     public void onStopControll() {
-        Log.d("Stopped automation");
+        Log.d("Stopped automation, collapsed writes:" + mQueue.getCoalescedCount()
+                + ", expired writes:" + mQueue.getExpiredCount());
         onSetDigitalValue();
         onSetAnalogValue();
     }
@@ -359,20 +388,19 @@ public class ActivityAIO extends Activity
         }
     }
 
-    @Override
-    public void onTransact(GattTransaction t) {
-        t.chr.setValue(t.value);
-        if (t.isWrite) {
-            mService.writeCharacteristic(t.chr);
-        }
-    }
-
     class SrvConnection implements ServiceConnection {
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder service) {
             /* bind to LeService, retrieve Gatt Profile of the device */
             mService = ((LeService.LocalBinder)service).getService();
-            mService.addListener(mListener);
+            GattScheduler scheduler = mService.getScheduler(mDevice);
+            if (scheduler == null) {
+                Log.e("no connection to the device, closing");
+                finish();
+                return;
+            }
+            mQueue = scheduler.getQueue(CLIENT);
+            mService.subscribe(mDevice, mListener);
 
             int conn = mService.getConnectionState(mDevice);
             if (conn == BluetoothProfile.STATE_DISCONNECTED) {
@@ -398,10 +426,6 @@ public class ActivityAIO extends Activity
         @Override
         public void onConnectionStateChange(Gatt gatt,
                 int status, int newState) {
-            if (!mDevice.getAddress().equals(gatt.getDevice().getAddress())) {
-                // not the device I care about
-                return;
-            }
             if (newState ==  BluetoothProfile.STATE_CONNECTED) {
                 Log.d("connected to device");
                 onConnected();
@@ -424,11 +448,5 @@ public class ActivityAIO extends Activity
                 Log.d("[" + i + "]" + Byte.toString(value[i]));
             }
         }
-
-        @Override
-        public void onCharacteristicWrite(Gatt gatt, GattCharacteristic charac, int status) {
-            Log.d("on consumed!!");
-            mQueue.onConsumed();
-        }
     }
 }
@@ -22,6 +22,7 @@ import com.issc.gatt.GattCharacteristic;
 import com.issc.gatt.GattDescriptor;
 import com.issc.gatt.GattService;
 import com.issc.impl.LeService;
+import com.issc.impl.cache.GattTableCache;
 import com.issc.R;
 import com.issc.util.Log;
 import com.issc.util.Util;
@@ -75,6 +76,13 @@ public class ActivityDeviceDetail extends ListActivity {
     private ProgressDialog mDiscoveringDialog;
     private boolean mDiscovered = false;
 
+    /* rows of name and address, services follow them */
+    private final static int INFO_ROWS = 2;
+    /* services are listed from cached attribute table */
+    private boolean mCachedRows = false;
+    /* cached table is being loaded */
+    private boolean mLoading = false;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -156,14 +164,39 @@ public class ActivityDeviceDetail extends ListActivity {
     }
 
     public void onClickBtnMore(View v) {
-        if (mService != null && !mDiscovered) {
+        if (mService != null && !mDiscovered && !mLoading) {
             startDiscovery();
         }
     }
 
     private void startDiscovery() {
-        if (mService!= null) {
-            showDialog(DISCOVERY_DIALOG);
+        if (mService != null) {
+            mLoading = true;
+            mService.loadCachedServices(mDevice, new GattTableCache.LoadCallback() {
+                public void onLoaded(String address, final List<GattService> cached) {
+                    runOnUiThread(new Runnable() {
+                        public void run() {
+                            mLoading = false;
+                            discover(cached);
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /* runs in UI thread once the cached table is loaded */
+    private void discover(List<GattService> cached) {
+        if (mService != null && !isFinishing()) {
+            if (cached != null) {
+                // show what we knew, discovery replaces it later
+                for (GattService srv: cached) {
+                    appendServices(srv);
+                }
+                mCachedRows = true;
+            } else {
+                showDialog(DISCOVERY_DIALOG);
+            }
             if (mService.getConnectionState(mDevice) == BluetoothProfile.STATE_CONNECTED) {
                 List<GattService> list = mService.getServices(mDevice);
                 if ((list == null) || (list.size() == 0)) {
@@ -180,12 +213,18 @@ public class ActivityDeviceDetail extends ListActivity {
     }
 
     private void stopDiscovery() {
-        dismissDialog(DISCOVERY_DIALOG);
+        if (mDiscoveringDialog != null && mDiscoveringDialog.isShowing()) {
+            dismissDialog(DISCOVERY_DIALOG);
+        }
     }
 
     private void onDiscovered(BluetoothDevice device) {
         mDiscovered = true;
         Log.d("on discovered");
+        if (mCachedRows) {
+            mCachedRows = false;
+            clearServices();
+        }
         if (mService != null) {
             List<GattService> srvs = mService.getServices(device);
             Iterator<GattService> it = srvs.iterator();
@@ -214,6 +253,10 @@ public class ActivityDeviceDetail extends ListActivity {
         StringBuilder sb = new StringBuilder();
         sb.append(ch.getUuid().toString());
         byte[] value = ch.getValue();
+        if (value == null && mService != null) {
+            // prefetched by LeService once discovered
+            value = mService.getCachedValue(mDevice, ch);
+        }
         if (value != null) {
             sb.append("(");
             for (int i = 0; i < value.length; i++) {
@@ -246,6 +289,18 @@ public class ActivityDeviceDetail extends ListActivity {
         append(getString(R.string.title_dsc), sb.toString(), R.color.trivial);
     }
 
+    /* remove rows of services, keep name and address */
+    private void clearServices() {
+        runOnUiThread(new Runnable() {
+            public void run() {
+                while (mEntries.size() > INFO_ROWS) {
+                    mEntries.remove(mEntries.size() - 1);
+                }
+                mAdapter.notifyDataSetChanged();
+            }
+        });
+    }
+
     /**
      * Append a row to List with specific style.
      */
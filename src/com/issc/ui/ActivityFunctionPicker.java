@@ -22,10 +22,12 @@ import com.issc.gatt.GattCharacteristic;
 import com.issc.gatt.GattService;
 import com.issc.impl.LeService;
 import com.issc.impl.FunctionAdapter;
+import com.issc.impl.cache.GattTableCache;
 import com.issc.R;
 import com.issc.util.Log;
 import com.issc.util.Util;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
@@ -67,6 +69,10 @@ public class ActivityFunctionPicker extends ListActivity {
     private ProgressDialog mDiscoveringDialog;
     private ProgressDialog mConnectDialog;
 
+    /* functions were listed from cached attribute table, discovery only
+     * confirms them so no dialog is needed */
+    private boolean mFromCache = false;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -193,16 +199,35 @@ public class ActivityFunctionPicker extends ListActivity {
         }
     }
 
+    /* list functions before connected if the device was discovered before,
+     * then connect to it */
+    private void listCachedServices() {
+        mService.loadCachedServices(mDevice, new GattTableCache.LoadCallback() {
+            public void onLoaded(String address, final List<GattService> srvs) {
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        if (mService == null || isFinishing()) {
+                            return;
+                        }
+                        if (srvs != null) {
+                            Log.d("cached result:" + srvs.size());
+                            mFromCache = true;
+                            appendServices(srvs, false);
+                        }
+                        connectToDevice();
+                    }
+                });
+            }
+        });
+    }
+
     private void onDiscovered(BluetoothDevice device) {
         Log.d("on discovered:");
         if (mService != null) {
             List<GattService> srvs = mService.getServices(device);
             Log.d("discovered result:" + srvs.size());
-            Iterator<GattService> it = srvs.iterator();
-            while (it.hasNext()) {
-                GattService s = it.next();
-                appendService(s);
-            }
+            // the device might be changed since it was cached
+            appendServices(srvs, mFromCache);
         }
     }
 
@@ -214,6 +239,9 @@ public class ActivityFunctionPicker extends ListActivity {
     }
 
     private void displayConnecting() {
+        if (mFromCache) {
+            return;
+        }
         runOnUiThread(new Runnable() {
             public void run() {
                 showDialog(CONNECT_DIALOG);
@@ -222,6 +250,9 @@ public class ActivityFunctionPicker extends ListActivity {
     }
 
     private void displayDiscovering() {
+        if (mFromCache) {
+            return;
+        }
         runOnUiThread(new Runnable() {
             public void run() {
                 showDialog(DISCOVERY_DIALOG);
@@ -250,31 +281,36 @@ public class ActivityFunctionPicker extends ListActivity {
     }
 
     /**
-     * Add found GattService to Adapter to decide what functions
-     * does this bluetooth device support.
+     * Append UUIDs of services and their characteristics to Adapter.
+     *
+     * The Adapter decides what functions could be used when we provides
+     * a list of UUIDs. They are given at once so the list is updated once.
+     *
+     * @param replace true to drop UUIDs which were given before.
      */
-    private void appendService(GattService srv) {
-        Log.d("append Service:" + srv.getUuid().toString());
-        appendUuid(srv.getUuid());
-        List<GattCharacteristic> list = srv.getCharacteristics();
-        Iterator<GattCharacteristic> it = list.iterator();
+    private void appendServices(List<GattService> srvs, final boolean replace) {
+        final List<UUID> uuids = new ArrayList<UUID>();
+        Iterator<GattService> it = srvs.iterator();
         while (it.hasNext()) {
-            GattCharacteristic chr = it.next();
-            Log.d("  append chr:" + chr.getUuid().toString());
-            appendUuid(chr.getUuid());
+            GattService srv = it.next();
+            Log.d("append Service:" + srv.getUuid().toString());
+            uuids.add(srv.getUuid());
+            List<GattCharacteristic> list = srv.getCharacteristics();
+            Iterator<GattCharacteristic> chrs = list.iterator();
+            while (chrs.hasNext()) {
+                GattCharacteristic chr = chrs.next();
+                Log.d("  append chr:" + chr.getUuid().toString());
+                uuids.add(chr.getUuid());
+            }
         }
-    }
 
-    /**
-     * Append an UUID to Adapter.
-     *
-     * The Adapter decides what functions could be used when we provides
-     * a list of UUIDs.
-     */
-    private void appendUuid(final UUID uuid) {
         runOnUiThread(new Runnable() {
             public void run() {
-                mAdapter.addUuidInUiThread(uuid);
+                if (replace) {
+                    mAdapter.setUuidsInUiThread(uuids);
+                } else {
+                    mAdapter.addUuidsInUiThread(uuids);
+                }
             }
         });
     }
@@ -318,7 +354,7 @@ public class ActivityFunctionPicker extends ListActivity {
             mService.addListener(mListener);
             // If Adapter is empty, means we never do discovering
             if (mAdapter.getCount() == 0) {
-                connectToDevice();
+                listCachedServices();
             }
         }
 
@@ -6,6 +6,7 @@ import com.issc.gatt.Gatt;
 import com.issc.gatt.GattCharacteristic;
 import com.issc.gatt.GattDescriptor;
 import com.issc.gatt.GattService;
+import com.issc.impl.GattScheduler;
 import com.issc.impl.LeService;
 import com.issc.impl.GattTransaction;
 import com.issc.R;
@@ -13,7 +14,6 @@ import com.issc.util.Log;
 import com.issc.util.Util;
 import com.issc.util.TransactionQueue;
 
-import java.nio.ByteBuffer;
 import java.util.List;
 
 import android.app.Activity;
@@ -27,8 +27,7 @@ import android.os.IBinder;
 import android.view.KeyEvent;
 import android.view.View;
 
-public class ActivityKeyboard extends Activity implements
-    TransactionQueue.Consumer<GattTransaction> {
+public class ActivityKeyboard extends Activity {
 
     private LeService mService;
     private BluetoothDevice mDevice;
@@ -36,8 +35,11 @@ public class ActivityKeyboard extends Activity implements
     private SrvConnection mConn;
 
     private TransactionQueue mQueue;
+    /* name of the queue in scheduler of LeService */
+    private final static String CLIENT = "Keyboard";
 
-    private final static int PAYLOAD_MAX = 20; // 90 bytes might be max
+    /* bytes of one packet, follows the negotiated MTU */
+    private volatile int mPayload = Gatt.MTU_DEFAULT - Gatt.WRITE_HEADER;
 
     private final static byte[] ESC   = {(byte)01};
     private final static byte[] ENTER = {(byte)28};
@@ -63,18 +65,11 @@ public class ActivityKeyboard extends Activity implements
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_keyboard);
 
-        mQueue = new TransactionQueue(this);
         mDevice = getIntent().getParcelableExtra(Bluebit.CHOSEN_DEVICE);
         mListener = new GattListener();
         mConn = new SrvConnection();
     }
 
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        mQueue.clear();
-    }
-
     @Override
     protected void onResume() {
         super.onResume();
@@ -84,8 +79,8 @@ public class ActivityKeyboard extends Activity implements
     @Override
     protected void onPause() {
         super.onPause();
-        mQueue.clear();
-        mService.rmListener(mListener);
+        releaseQueue();
+        mService.unsubscribe(mListener);
         mService = null;
         unbindService(mConn);
     }
@@ -155,14 +150,10 @@ public class ActivityKeyboard extends Activity implements
      * Write data to remote device.
      */
     private void write(byte[] bytes) {
-        ByteBuffer buf = ByteBuffer.allocate(bytes.length);
-        buf.put(bytes);
-        buf.position(0);
-        while(buf.remaining() != 0) {
-            int size = (buf.remaining() > PAYLOAD_MAX) ? PAYLOAD_MAX: buf.remaining();
-            byte[] dst = new byte[size];
-            buf.get(dst, 0, size);
-            GattTransaction t = new GattTransaction(mTransRx, dst);
+        int payload = mPayload;
+        for (int pos = 0; pos < bytes.length; pos += payload) {
+            int size = Math.min(payload, bytes.length - pos);
+            GattTransaction t = new GattTransaction(mTransRx, bytes, pos, size);
             mQueue.add(t);
         }
     }
@@ -179,7 +170,9 @@ public class ActivityKeyboard extends Activity implements
 
     private void onDisconnected() {
         Log.d("keyboard activity disconnected, closing");
-        mQueue.clear();
+        if (mQueue != null) {
+            mQueue.clear();
+        }
         this.setResult(Bluebit.RESULT_REMOTE_DISCONNECT);
         this.finish();
     }
@@ -189,16 +182,29 @@ public class ActivityKeyboard extends Activity implements
         mTransTx = proprietary.getCharacteristic(Bluebit.CHR_ISSC_TRANS_TX);
         mTransRx = proprietary.getCharacteristic(Bluebit.CHR_ISSC_TRANS_RX);
         Log.d(String.format("found Tx:%b, Rx:%b", mTransTx != null, mTransRx != null));
+
+        // larger packets if the device agrees, stay default otherwise
+        updatePayload(mService.getMtu(mDevice));
+        mService.requestMtu(mDevice, Bluebit.MTU_REQUEST);
     }
 
-    @Override
-    public void onTransact(GattTransaction t) {
-        t.chr.setValue(t.value);
-        if (t.isWrite) {
-            mService.writeCharacteristic(t.chr);
-        } else {
-            mService.readCharacteristic(t.chr);
+    private void updatePayload(int mtu) {
+        mPayload = mtu - Gatt.WRITE_HEADER;
+        Log.d("mtu " + mtu + ", payload " + mPayload + " bytes");
+    }
+
+    /* pending keys are kept in LeService while this activity is
+     * recreated, and dropped once it leaves */
+    private void releaseQueue() {
+        GattScheduler scheduler = mService.getScheduler(mDevice);
+        if (mQueue == null || scheduler == null) {
+            return;
+        }
+
+        if (!isChangingConfigurations()) {
+            scheduler.release(CLIENT);
         }
+        mQueue = null;
     }
 
     class GattListener extends Gatt.ListenerHelper {
@@ -209,11 +215,6 @@ public class ActivityKeyboard extends Activity implements
 
         @Override
         public void onConnectionStateChange(Gatt gatt, int status, int newState) {
-            if (!mDevice.getAddress().equals(gatt.getDevice().getAddress())) {
-                // not the device I care about
-                return;
-            }
-
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 onConnected();
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
@@ -226,6 +227,13 @@ public class ActivityKeyboard extends Activity implements
             onDiscovered();
         }
 
+        @Override
+        public void onMtuChanged(Gatt gatt, int mtu, int status) {
+            if (status == Gatt.GATT_SUCCESS) {
+                updatePayload(mtu);
+            }
+        }
+
         @Override
         public void onCharacteristicWrite(Gatt gatt, GattCharacteristic charac, int status) {
             if (status == Gatt.GATT_SUCCESS) {
@@ -233,7 +241,6 @@ public class ActivityKeyboard extends Activity implements
             } else {
                 Log.d("sent event fail");
             }
-            mQueue.onConsumed();
         }
     }
 
@@ -241,7 +248,14 @@ public class ActivityKeyboard extends Activity implements
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder service) {
             mService = ((LeService.LocalBinder)service).getService();
-            mService.addListener(mListener);
+            GattScheduler scheduler = mService.getScheduler(mDevice);
+            if (scheduler == null) {
+                Log.e("no connection to the device, closing");
+                finish();
+                return;
+            }
+            mQueue = scheduler.getQueue(CLIENT);
+            mService.subscribe(mDevice, mListener);
 
             int conn = mService.getConnectionState(mDevice);
             if (conn == BluetoothProfile.STATE_DISCONNECTED) {
@@ -21,24 +21,41 @@ import com.issc.gatt.Gatt;
 import com.issc.gatt.GattCharacteristic;
 import com.issc.gatt.GattDescriptor;
 import com.issc.gatt.GattService;
+import com.issc.impl.FileSender;
+import com.issc.impl.GattScheduler;
 import com.issc.impl.LeService;
+import com.issc.impl.PingPong;
+import com.issc.impl.TrafficGenerator;
 import com.issc.impl.GattTransaction;
 import com.issc.R;
+import com.issc.util.BlockDigest;
+import com.issc.util.FileComparator;
 import com.issc.util.Log;
+import com.issc.util.LatencyHistogram;
+import com.issc.util.PayloadPattern;
+import com.issc.util.ReceiveRecorder;
+import com.issc.util.SequenceVerifier;
+import com.issc.util.ThroughputMeter;
 import com.issc.util.Util;
 import com.issc.util.TransactionQueue;
 
-import java.io.FileOutputStream;
 import java.io.File;
-import java.io.OutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.UUID;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.app.Activity;
 import android.app.Dialog;
@@ -51,6 +68,7 @@ import android.content.Intent;
 import android.content.res.Resources;
 import android.content.ServiceConnection;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
@@ -72,28 +90,79 @@ import android.widget.TabHost;
 import android.widget.TextView;
 import android.widget.ToggleButton;
 
-public class ActivityTransparent extends Activity implements
-    TransactionQueue.Consumer<GattTransaction> {
+public class ActivityTransparent extends Activity {
 
     private LeService mService;
     private BluetoothDevice mDevice;
     private Gatt.Listener mListener;
+    private Gatt.Listener mReceiver;
     private SrvConnection mConn;
 
     private ProgressDialog mConnectionDialog;
     private ProgressDialog mTimerDialog;
     protected ViewHandler  mViewHandler;
 
-    private OutputStream mStream;
+    /* received data goes to file through it, off the callback thread */
+    private volatile ReceiveRecorder mRecorder;
+    private final static int RECV_BUFFER = 64 * 1024;
+
+    /* digests of the latest recorded file, makes comparing it instant */
+    private volatile BlockDigest mRecvDigest;
+    private FileComparator mComparator;
+    private final static int MISMATCH_SHOWN = 5;
+
+    /* updated by callback thread only, shown by summary periodically */
+    private volatile long mRecvPackets = 0;
+    private volatile long mRecvBytes   = 0;
+    private volatile byte[] mRecvLast;
+    private long mShownPackets = 0;
+    private final static long SUMMARY_PERIOD = 500;
     private TransactionQueue mQueue;
-
-    private final static int PAYLOAD_MAX = 20; // 90 bytes might be max
+    /* name of the queue in scheduler of LeService */
+    private final static String CLIENT = "Transparent";
+
+    /* bytes of one packet, follows the negotiated MTU */
+    private volatile int mPayload = Gatt.MTU_DEFAULT - Gatt.WRITE_HEADER;
+
+    private CharsetEncoder mEncoder = Charset.defaultCharset().newEncoder();
+
+    /* how many Write-Without-Response could be handed to the scheduler,
+     * so the next one is ready once the link calls back */
+    private final static int WINDOW_NO_RESPONSE = 8;
+
+    /* how many packets of a file could be read ahead */
+    private final static int SEND_SLOTS = 32;
+    private volatile FileSender mSender;
+
+    /* measures file sending, a benchmark also exports the result */
+    private ThroughputMeter mMeter;
+    private volatile boolean mBenchmark = false;
+    /* benchmark file is being written, only touched by UI thread */
+    private boolean mBenchPreparing = false;
+    private final static String BENCH_FILE = Bluebit.DATA_DIR + "benchmark.bin";
+    private final static int BENCH_BYTES = 256 * 1024;
+    private final static long BENCH_PERIOD = 1000;
+
+    /* measures round trip time, echoes are taken off the receive path */
+    private volatile PingPong mPing;
+    private final static int PING_COUNT = 100;
+    private final static long PING_INTERVAL = 20;
+    private final static long PING_TIMEOUT = 1000;
+
+    /* paced packets of Timer tab, and the checker of what comes back */
+    private volatile TrafficGenerator mGenerator;
+    private volatile SequenceVerifier mVerifier;
+    private long mShownVerified = 0;
+    private final static int GEN_SLOTS = 16;
 
     private final static int CONNECTION_DIALOG = 1;
     private final static int TIMER_DIALOG      = 2;
     private final static int CHOOSE_FILE = 0x101;
     private final static int COMPARE_FILE = 0x102;
     private final static int MENU_CLEAR  = 0x501;
+    private final static int MENU_CANCEL = 0x502;
+    private final static int MENU_BENCHMARK = 0x503;
+    private final static int MENU_PING = 0x504;
 
     private final static String INFO_CONTENT = "the_information_body";
     private final static String RCV_ENABLED = "could_receive_data_if_enabled";
@@ -104,6 +173,8 @@ public class ActivityTransparent extends Activity implements
     private final static int DISMISS_TIMER_DIALOG       = 0x1003;
     private final static int APPEND_MESSAGE             = 0x1004;
     private final static int RCV_STATE                  = 0x1005;
+    private final static int RCV_SUMMARY                = 0x1006;
+    private final static int BENCH_TICK                 = 0x1007;
 
 
     private TabHost mTabHost;
@@ -117,17 +188,19 @@ public class ActivityTransparent extends Activity implements
     private Spinner mSpinnerDelta;
     private Spinner mSpinnerSize;
     private Spinner mSpinnerRepeat;
+    private Spinner mSpinnerPattern;
 
     private int[] mValueDelta;
     private int[] mValueSize;
     private int[] mValueRepeat;
+    private int[] mValuePattern;
 
     private GattCharacteristic mTransTx;
     private GattCharacteristic mTransRx;
 
-    private int mSuccess = 0;
-    private int mFail    = 0;
-    private Calendar mStartTime;
+    /* bytes written, updated by callback threads */
+    private AtomicLong mSuccess = new AtomicLong(0);
+    private AtomicLong mFail    = new AtomicLong(0);
 
     private final static int MAX_LINES = 50;
     private ArrayList<CharSequence> mLogBuf;
@@ -137,8 +210,6 @@ public class ActivityTransparent extends Activity implements
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_trans);
 
-        mQueue = new TransactionQueue(this);
-
         mMsg     = (TextView)findViewById(R.id.trans_msg);
         mInput   = (EditText)findViewById(R.id.trans_input);
         mBtnSend = (Button)findViewById(R.id.trans_btn_send);
@@ -147,6 +218,8 @@ public class ActivityTransparent extends Activity implements
         mRcvIndicator   = (CompoundButton)findViewById(R.id.rcv_indicator);
 
         mViewHandler = new ViewHandler();
+        mComparator = new FileComparator(FileComparator.BLOCK_SIZE);
+        mMeter = new ThroughputMeter();
 
         mTabHost = (TabHost) findViewById(R.id.tabhost);
         mTabHost.setup();
@@ -160,6 +233,7 @@ public class ActivityTransparent extends Activity implements
         mDevice = getIntent().getParcelableExtra(Bluebit.CHOSEN_DEVICE);
 
         mListener = new GattListener();
+        mReceiver = new ReceiveListener();
         initSpinners();
 
         mLogBuf = new ArrayList<CharSequence>();
@@ -172,12 +246,16 @@ public class ActivityTransparent extends Activity implements
     @Override
     public void onDestroy() {
         super.onDestroy();
-        mQueue.clear();
+        stopTimer();
+        cancelSending();
         closeStream();
+        mComparator.shutdown();
         mViewHandler.removeCallbacksAndMessages(null);
 
         /* Transparent is not a leaf activity. disconnect/unregister-listener in onDestroy*/
-        mService.rmListener(mListener);
+        mService.unsubscribe(mListener);
+        mService.unsubscribe(mReceiver);
+        releaseQueue();
         mService = null;
         unbindService(mConn);
     }
@@ -188,18 +266,22 @@ public class ActivityTransparent extends Activity implements
         mSpinnerDelta  = (Spinner)findViewById(R.id.timer_delta);
         mSpinnerSize   = (Spinner)findViewById(R.id.timer_size);
         mSpinnerRepeat = (Spinner)findViewById(R.id.timer_repeat);
+        mSpinnerPattern = (Spinner)findViewById(R.id.timer_pattern);
 
-        mValueDelta  = res.getIntArray(R.array.delta_value);
-        mValueSize   = res.getIntArray(R.array.size_value);
-        mValueRepeat = res.getIntArray(R.array.repeat_value);
+        mValueDelta   = res.getIntArray(R.array.delta_value);
+        mValueSize    = res.getIntArray(R.array.size_value);
+        mValueRepeat  = res.getIntArray(R.array.repeat_value);
+        mValuePattern = res.getIntArray(R.array.pattern_value);
 
         initSpinner(R.array.delta_text, mSpinnerDelta);
         initSpinner(R.array.size_text, mSpinnerSize);
         initSpinner(R.array.repeat_text, mSpinnerRepeat);
+        initSpinner(R.array.pattern_text, mSpinnerPattern);
 
-        mSpinnerDelta.setSelection(3);  // supposed to select 1000ms
+        mSpinnerDelta.setSelection(7);  // supposed to select 1000ms
         mSpinnerSize.setSelection(19);  // supposed to select 20bytes
         mSpinnerRepeat.setSelection(0); // supposed to select Unlimited
+        mSpinnerPattern.setSelection(2); // supposed to select ASCII digits
     }
 
     private void initSpinner(int textArrayId, Spinner spinner) {
@@ -229,6 +311,12 @@ public class ActivityTransparent extends Activity implements
         if (v == mMsg) {
             menu.setHeaderTitle("Message Area");
             menu.add(0, MENU_CLEAR, Menu.NONE, "Clear");
+            if (mSender != null || mPing != null) {
+                menu.add(0, MENU_CANCEL, Menu.NONE, "Cancel sending");
+            } else {
+                menu.add(0, MENU_BENCHMARK, Menu.NONE, "Benchmark");
+                menu.add(0, MENU_PING, Menu.NONE, "Ping-pong");
+            }
         }
     }
 
@@ -239,6 +327,12 @@ public class ActivityTransparent extends Activity implements
             mLogBuf.clear();
             mMsg.setText("");
             mMsg.scrollTo(0, 0);
+        } else if (id == MENU_CANCEL) {
+            cancelSending();
+        } else if (id == MENU_BENCHMARK) {
+            startBenchmark();
+        } else if (id == MENU_PING) {
+            startPing();
         }
         return true;
     }
@@ -290,20 +384,20 @@ public class ActivityTransparent extends Activity implements
     }
 
     private void enableNotification() {
-        boolean set = mService.setCharacteristicNotification(mTransTx, true);
+        boolean set = mService.setCharacteristicNotification(mDevice, mTransTx, true);
         Log.d("set notification:" + set);
         GattDescriptor dsc = mTransTx.getDescriptor(Bluebit.DES_CLIENT_CHR_CONFIG);
         dsc.setValue(dsc.getConstantBytes(GattDescriptor.ENABLE_NOTIFICATION_VALUE));
-        boolean success = mService.writeDescriptor(dsc);
+        boolean success = mService.writeDescriptor(mDevice, dsc);
         Log.d("writing enable descriptor:" + success);
     }
 
     private void disableNotification() {
-        boolean set = mService.setCharacteristicNotification(mTransTx, false);
+        boolean set = mService.setCharacteristicNotification(mDevice, mTransTx, false);
         Log.d("set notification:" + set);
         GattDescriptor dsc = mTransTx.getDescriptor(Bluebit.DES_CLIENT_CHR_CONFIG);
         dsc.setValue(dsc.getConstantBytes(GattDescriptor.DISABLE_NOTIFICATION_VALUE));
-        boolean success = mService.writeDescriptor(dsc);
+        boolean success = mService.writeDescriptor(mDevice, dsc);
         Log.d("writing disable descriptor:" + success);
     }
 
@@ -318,7 +412,12 @@ public class ActivityTransparent extends Activity implements
                 file.createNewFile();
             }
 
-            mStream = new FileOutputStream(file, false);
+            ReceiveRecorder recorder = new ReceiveRecorder(file, RECV_BUFFER);
+            BlockDigest digest = new BlockDigest(mComparator.getBlockSize());
+            recorder.setBlockDigest(digest);
+            mRecvDigest = (path.equals(Bluebit.DEFAULT_LOG)) ? digest : null;
+            recorder.start();
+            mRecorder = recorder;
         } catch (IOException e) {
             msgShow("open stream fail", e.toString());
             e.printStackTrace();
@@ -326,73 +425,89 @@ public class ActivityTransparent extends Activity implements
     }
 
     private void closeStream() {
-        try {
-            if (mStream != null) {
-                mStream.flush();
-                mStream.close();
-            }
-        } catch (IOException e) {
-            msgShow("close stream fail", e.toString());
-            e.printStackTrace();
+        ReceiveRecorder recorder = mRecorder;
+        mRecorder = null;
+        if (recorder != null) {
+            // the writer thread writes the rest then closes file
+            recorder.close();
+            showReceiveSummary(recorder);
         }
-
-        mStream = null;
     }
 
-    private void writeToStream(byte[] data) {
-        if (mStream != null) {
-            try {
-                mStream.write(data, 0, data.length);
-                mStream.flush();
-            } catch (IOException e) {
-                msgShow("write fail", e.toString());
-                e.printStackTrace();
+    /* runs on UI thread, show what happened since last time */
+    private void showReceiveSummary(ReceiveRecorder recorder) {
+        long packets = mRecvPackets;
+        if (packets != mShownPackets) {
+            mShownPackets = packets;
+            byte[] last = mRecvLast;
+            msgShow("recv", String.format("%d packets, %d bytes, last:%s",
+                        packets, mRecvBytes,
+                        (last == null) ? "" : new String(last)));
+        }
+
+        SequenceVerifier verifier = mVerifier;
+        if (verifier != null && verifier.getReceived() != mShownVerified) {
+            mShownVerified = verifier.getReceived();
+            msgShow("verify", verifier.toString());
+        }
+
+        if (recorder != null) {
+            IOException error = recorder.getError();
+            if (error != null) {
+                msgShow("write fail", error.toString());
+            } else if (recorder.getDropped() > 0) {
+                msgShow("record", String.format("written %d, dropped %d bytes",
+                            recorder.getWritten(), recorder.getDropped()));
             }
         }
     }
 
+    /**
+     * Compare in background, the received file might have been digested
+     * while receiving.
+     */
     private void compareFile(String pathA, String pathB) {
-        try {
-            String md5A = Util.getMD5FromBytes(Util.readBytesFromFile(pathA));
-            String md5B = Util.getMD5FromBytes(Util.readBytesFromFile(pathB));
-            msgShow(pathA, md5A);
-            msgShow(pathB, md5B);
-            if (md5A.equals(md5B)) {
-                msgShow("compare", "Match");
-            } else {
-                msgShow("compare", "Not Match");
-            }
-        } catch (IOException e) {
-            msgShow("comapre fail", e.toString());
-            e.printStackTrace();
-        }
+        BlockDigest known = pathB.equals(Bluebit.DEFAULT_LOG) ? mRecvDigest : null;
+        mComparator.compare(pathA, pathB, known, new CompareListener(pathA, pathB));
     }
 
     /**
-     * Received data from remote when enabling Echo.
+     * Received data from remote, runs on callback thread.
      *
-     * Display the data and transfer back to device.
+     * Record the data, and transfer back to device when enabling Echo.
+     * UI is updated by a periodic summary rather than per packet.
      */
     private void onReceived(byte[] data) {
-        StringBuffer sb = new StringBuffer();
         if (data == null) {
-            sb.append("Received empty data");
-        } else {
-            String recv = new String(data);
-            sb.append("recv:");
-            sb.append(recv);
-            writeToStream(data);
-
-            if (mToggleEcho.isChecked()) {
-                write(data);
-                sb.append("echo:");
-                sb.append(recv);
-            }
+            msgShow("recv", "Received empty data");
+            return;
         }
-        Bundle msg = new Bundle();
-        msg.putCharSequence(INFO_CONTENT, sb);
 
-        updateView(APPEND_MESSAGE, msg);
+        PingPong ping = mPing;
+        if (ping != null && ping.onEcho(data)) {
+            return;
+        }
+
+        ReceiveRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.offer(data);
+        }
+
+        SequenceVerifier verifier = mVerifier;
+        if (verifier != null) {
+            verifier.offer(data);
+        }
+
+        if (mToggleEcho.isChecked()) {
+            write(data);
+        }
+
+        mRecvPackets++;
+        mRecvBytes += data.length;
+        mRecvLast = data;
+        if (!mViewHandler.hasMessages(RCV_SUMMARY)) {
+            mViewHandler.sendEmptyMessageDelayed(RCV_SUMMARY, SUMMARY_PERIOD);
+        }
     }
 
     @Override
@@ -403,9 +518,7 @@ public class ActivityTransparent extends Activity implements
                 String filePath = uri.getPath();
                 Log.d("chosen file:" + filePath);
                 try {
-                    mStartTime = Calendar.getInstance();
-                    write(Util.readBytesFromFile(filePath));
-                    msgShow("send", filePath);
+                    sendFile(filePath);
                 } catch (IOException e) {
                     e.printStackTrace();
                     Log.d("IO Exception");
@@ -420,6 +533,195 @@ public class ActivityTransparent extends Activity implements
         }
     }
 
+    /**
+     * Send file in bulk priority, only a few packets are in memory.
+     */
+    private void sendFile(String path) throws IOException {
+        cancelSending();
+
+        FileSender sender = new FileSender(mQueue, mTransRx, path,
+                mPayload, SEND_SLOTS);
+        sender.setWriteType(mToggleResponse.isChecked() ?
+            GattCharacteristic.WRITE_TYPE_DEFAULT:
+            GattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        sender.setListener(new SenderListener(sender));
+
+        mQueue.resetStats();
+        mMeter.start();
+        mSender = sender;
+        msgShow("send", path + ", " + sender.getTotal() + " bytes");
+        mViewHandler.removeMessages(BENCH_TICK);
+        mViewHandler.sendEmptyMessageDelayed(BENCH_TICK, BENCH_PERIOD);
+        sender.start();
+    }
+
+    /**
+     * Send a generated file of known pattern, and export the measurement
+     * once it is done, to compare phones, firmwares and parameters.
+     */
+    private void startBenchmark() {
+        if (mBenchPreparing) {
+            return;
+        }
+
+        // the file is written by a worker, then sent from UI thread
+        mBenchPreparing = true;
+        msgShow("benchmark", "preparing " + BENCH_BYTES + " bytes");
+        new Thread(new Runnable() {
+            public void run() {
+                final IOException error = writeBenchFile();
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        mBenchPreparing = false;
+                        if (!isFinishing()) {
+                            sendBenchFile(error);
+                        }
+                    }
+                });
+            }
+        }, "Benchmark").start();
+    }
+
+    /* runs on worker thread, null if the file is ready */
+    private IOException writeBenchFile() {
+        try {
+            File file = new File(BENCH_FILE);
+            if (file.length() != BENCH_BYTES) {
+                byte[] data = new byte[BENCH_BYTES];
+                for (int i = 0; i < data.length; i++) {
+                    data[i] = (byte)i;
+                }
+                file.getParentFile().mkdirs();
+                FileOutputStream out = new FileOutputStream(file);
+                try {
+                    out.write(data);
+                } finally {
+                    out.close();
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            return e;
+        }
+    }
+
+    private void sendBenchFile(IOException error) {
+        try {
+            if (error != null) {
+                throw error;
+            }
+            sendFile(BENCH_FILE);
+            mBenchmark = true;
+        } catch (IOException e) {
+            msgShow("benchmark fail", e.toString());
+            e.printStackTrace();
+        }
+    }
+
+    /* runs on UI thread while sending */
+    private void showRate() {
+        if (!mMeter.isRunning()) {
+            return;
+        }
+        ThroughputMeter.Sample s = mMeter.sample();
+        msgShow("rate", String.format("%.1f B/s, %.1f packets/s, avg %.1f B/s",
+                    s.instBytesRate, s.instPacketsRate, s.avgBytesRate));
+        mViewHandler.sendEmptyMessageDelayed(BENCH_TICK, BENCH_PERIOD);
+    }
+
+    /* sending is over, report what was measured */
+    private void finishMeasure(boolean cancelled) {
+        boolean benchmark = mBenchmark;
+        mBenchmark = false;
+        ThroughputMeter.Sample s = mMeter.stop();
+        if (s == null) {
+            return;
+        }
+
+        LatencyHistogram latency = mMeter.getLatency();
+        msgShow("time", String.format("spent %.3f seconds", s.elapsed / 1e9));
+        msgShow("rate", String.format("avg %.1f B/s, %.1f packets/s",
+                    s.avgBytesRate, s.avgPacketsRate));
+        msgShow("latency", String.format("p50 %d us, p99 %d us, max %d us",
+                    latency.getPercentile(50),
+                    latency.getPercentile(99),
+                    latency.getMax()));
+
+        if (benchmark && !cancelled) {
+            exportMeasure();
+        }
+    }
+
+    /* notes are taken now, the file is written by a worker since this runs
+     * on the callback thread of the link */
+    private void exportMeasure() {
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+            .format(new Date());
+        final File file =
+            new File(Bluebit.DATA_DIR + "benchmark-" + stamp + ".csv");
+
+        final List<String> notes = new ArrayList<String>();
+        notes.add("phone," + Build.MANUFACTURER + " " + Build.MODEL);
+        notes.add("android," + Build.VERSION.RELEASE);
+        notes.add("device," + mDevice.getName() + " " + mDevice.getAddress());
+        notes.add("mtu," + mService.getMtu(mDevice));
+        notes.add("payload," + mPayload);
+        notes.add("write_type," + (mToggleResponse.isChecked() ?
+                    "with_response" : "no_response"));
+        notes.add("window," + mQueue.getWindowSize());
+        notes.add("send_slots," + SEND_SLOTS);
+        notes.add("window_usage," + mQueue.getWindowUsage());
+        notes.add("timeouts," + mQueue.getTimeoutCount());
+        notes.add("retries," + mQueue.getRetryCount());
+
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    mMeter.writeCsv(file, notes);
+                    msgShow("benchmark", "exported to " + file.getPath());
+                } catch (IOException e) {
+                    msgShow("export fail", e.toString());
+                    e.printStackTrace();
+                }
+            }
+        }, "Export").start();
+    }
+
+    private void cancelSending() {
+        FileSender sender = mSender;
+        if (sender != null) {
+            sender.cancel();
+        }
+        PingPong ping = mPing;
+        if (ping != null) {
+            ping.cancel();
+        }
+    }
+
+    /**
+     * Send pings to TRANS_RX, the device should echo them by TRANS_TX.
+     */
+    private void startPing() {
+        cancelSending();
+        if (!mRcvIndicator.isChecked()) {
+            // echoes come by notification
+            enableNotification();
+        }
+
+        int size = Math.max(PingPong.HEADER,
+                Math.min(mPayload, mValueSize[mSpinnerSize.getSelectedItemPosition()]));
+        PingPong ping = new PingPong(mQueue, mTransRx, PING_COUNT, size,
+                PING_INTERVAL, PING_TIMEOUT);
+        ping.setWriteType(mToggleResponse.isChecked() ?
+            GattCharacteristic.WRITE_TYPE_DEFAULT:
+            GattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        ping.setListener(new PingListener());
+
+        mPing = ping;
+        msgShow("ping", PING_COUNT + " pings of " + size + " bytes");
+        ping.start();
+    }
+
     private void msgShow(CharSequence prefix, CharSequence cs) {
         StringBuffer sb = new StringBuffer();
         sb.append(prefix);
@@ -435,22 +737,54 @@ public class ActivityTransparent extends Activity implements
      * Write string to remote device.
      */
     private void write(CharSequence cs) {
-        byte[] bytes = cs.toString().getBytes();
-        write(bytes);
+        ByteBuffer buf;
+        try {
+            // encode once, packets are slices of it. Timer thread
+            // writes as well, encoder could not be shared.
+            synchronized(mEncoder) {
+                buf = mEncoder.encode(CharBuffer.wrap(cs));
+            }
+        } catch (CharacterCodingException e) {
+            Log.e("cannot encode input: " + e.getMessage());
+            return;
+        }
+        write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(),
+                GattTransaction.PRIORITY_INTERACTIVE);
     }
 
     /**
      * Write data to remote device.
      */
     private void write(byte[] bytes) {
-        ByteBuffer buf = ByteBuffer.allocate(bytes.length);
-        buf.put(bytes);
-        buf.position(0);
-        while(buf.remaining() != 0) {
-            int size = (buf.remaining() > PAYLOAD_MAX) ? PAYLOAD_MAX: buf.remaining();
-            byte[] dst = new byte[size];
-            buf.get(dst, 0, size);
-            GattTransaction t = new GattTransaction(mTransRx, dst);
+        write(bytes, GattTransaction.PRIORITY_INTERACTIVE);
+    }
+
+    /**
+     * Write data to remote device in specific priority.
+     *
+     * Large transfer should use PRIORITY_BULK so it does not block
+     * others behind it.
+     */
+    private void write(byte[] bytes, int priority) {
+        write(bytes, 0, bytes.length, priority);
+    }
+
+    /**
+     * Write part of data. Packets refer to the array rather than copying
+     * it, so the array should not be changed after this call.
+     */
+    private void write(byte[] bytes, int offset, int length, int priority) {
+        int type = mToggleResponse.isChecked() ?
+            GattCharacteristic.WRITE_TYPE_DEFAULT:
+            GattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+
+        int payload = mPayload;
+        int end = offset + length;
+        for (int pos = offset; pos < end; pos += payload) {
+            int size = Math.min(payload, end - pos);
+            GattTransaction t = new GattTransaction(mTransRx, bytes, pos, size);
+            t.writeType = type;
+            t.priority  = priority;
             mQueue.add(t);
         }
     }
@@ -477,49 +811,39 @@ public class ActivityTransparent extends Activity implements
         return null;
     }
 
-    private void onTimerSend(int count, int size) {
-        /* max is 20 */
-        String out = String.format("%020d", count);
-        if (out.length() > size) {
-            // if too long
-            out = out.substring(out.length() - size);
-        }
-        msgShow("send", out);
-        write(out);
-    }
-
-    private boolean mRunning;
-
+    /**
+     * Send generated packets in paced rate, and check what comes back
+     * if the device echoes.
+     */
     private void startTimer() {
+        stopTimer();
 
-        final int delta  = mValueDelta[mSpinnerDelta.getSelectedItemPosition()];
-        final int size   = mValueSize[mSpinnerSize.getSelectedItemPosition()];
-        final int repeat = mValueRepeat[mSpinnerRepeat.getSelectedItemPosition()];
-        mRunning = true;
-        Thread runner = new Thread() {
-            public void run() {
-                int counter = 0;
-                try {
-                    while(mRunning) {
-                        if (repeat != 0 && repeat == counter) {
-                            stopTimer();
-                        } else {
-                            onTimerSend(counter, size);
-                            sleep(delta);
-                            counter++;
-                        }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-                updateView(DISMISS_TIMER_DIALOG, null);
-            }
-        };
-        runner.start();
+        long interval = mValueDelta[mSpinnerDelta.getSelectedItemPosition()] * 1000L;
+        int size   = mValueSize[mSpinnerSize.getSelectedItemPosition()];
+        int repeat = mValueRepeat[mSpinnerRepeat.getSelectedItemPosition()];
+        int type   = mValuePattern[mSpinnerPattern.getSelectedItemPosition()];
+        size = Math.max(PayloadPattern.SEQ_BYTES, Math.min(size, mPayload));
+
+        PayloadPattern pattern = new PayloadPattern(type);
+        TrafficGenerator generator = new TrafficGenerator(mQueue, mTransRx,
+                pattern, size, interval, repeat, GEN_SLOTS);
+        generator.setWriteType(mToggleResponse.isChecked() ?
+            GattCharacteristic.WRITE_TYPE_DEFAULT:
+            GattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        generator.setListener(new GeneratorListener());
+
+        mShownVerified = 0;
+        mVerifier = new SequenceVerifier(pattern);
+        mGenerator = generator;
+        msgShow("timer", String.format("%d bytes every %d us", size, interval / 1000));
+        generator.start();
     }
 
     private void stopTimer() {
-        mRunning = false;
+        TrafficGenerator generator = mGenerator;
+        if (generator != null) {
+            generator.stop();
+        }
     }
 
     /**
@@ -542,6 +866,47 @@ public class ActivityTransparent extends Activity implements
         mMsg.setText(text);
     }
 
+    /* the queue stays in LeService, written packets keep going out while
+     * this activity is recreated */
+    private boolean acquireQueue() {
+        GattScheduler scheduler = mService.getScheduler(mDevice);
+        if (scheduler == null) {
+            return false;
+        }
+
+        mQueue = scheduler.getQueue(CLIENT);
+        mQueue.setWindowSize(WINDOW_NO_RESPONSE);
+        mQueue.setGiveUpListener(new TransactionQueue.GiveUpListener() {
+            public void onGiveUp(TransactionQueue.Transaction t) {
+                mMeter.onFailed(((GattTransaction)t).length);
+                FileSender sender = mSender;
+                if (sender != null) {
+                    sender.onDone(t, false);
+                }
+                TrafficGenerator generator = mGenerator;
+                if (generator != null) {
+                    generator.onDone(t);
+                }
+            }
+        });
+        scheduler.setListener(CLIENT, new TransactListener());
+        return true;
+    }
+
+    private void releaseQueue() {
+        GattScheduler scheduler = mService.getScheduler(mDevice);
+        if (mQueue == null || scheduler == null) {
+            return;
+        }
+
+        mQueue.setGiveUpListener(null);
+        scheduler.setListener(CLIENT, null);
+        if (!isChangingConfigurations()) {
+            scheduler.release(CLIENT);
+        }
+        mQueue = null;
+    }
+
     private void onConnected() {
         List<GattService> list = mService.getServices(mDevice);
         if ((list == null) || (list.size() == 0)) {
@@ -555,8 +920,10 @@ public class ActivityTransparent extends Activity implements
     private void onDisconnected() {
         Log.d("transparent activity disconnected, closing");
         stopTimer();
-        mStartTime = null;
-        mQueue.clear();
+        cancelSending();
+        if (mQueue != null) {
+            mQueue.clear();
+        }
         this.setResult(Bluebit.RESULT_REMOTE_DISCONNECT);
         this.finish();
     }
@@ -568,20 +935,15 @@ public class ActivityTransparent extends Activity implements
         mTransTx = proprietary.getCharacteristic(Bluebit.CHR_ISSC_TRANS_TX);
         mTransRx = proprietary.getCharacteristic(Bluebit.CHR_ISSC_TRANS_RX);
         Log.d(String.format("found Tx:%b, Rx:%b", mTransTx != null, mTransRx != null));
+
+        // larger packets if the device agrees, stay default otherwise
+        updatePayload(mService.getMtu(mDevice));
+        mService.requestMtu(mDevice, Bluebit.MTU_REQUEST);
     }
 
-    @Override
-    public void onTransact(GattTransaction t) {
-        t.chr.setValue(t.value);
-        if (t.isWrite) {
-            int type = mToggleResponse.isChecked() ?
-                GattCharacteristic.WRITE_TYPE_DEFAULT:
-                GattCharacteristic.WRITE_TYPE_NO_RESPONSE;
-            t.chr.setWriteType(type);
-            mService.writeCharacteristic(t.chr);
-        } else {
-            mService.readCharacteristic(t.chr);
-        }
+    private void updatePayload(int mtu) {
+        mPayload = mtu - Gatt.WRITE_HEADER;
+        Log.d("mtu " + mtu + ", payload " + mPayload + " bytes");
     }
 
     public void updateView(int tag, Bundle info) {
@@ -633,12 +995,146 @@ public class ActivityTransparent extends Activity implements
                         mMsg.scrollTo(0, amount);
                     }
                 }
+            } else if (tag == BENCH_TICK) {
+                showRate();
+            } else if (tag == RCV_SUMMARY) {
+                showReceiveSummary(mRecorder);
             } else if (tag == RCV_STATE) {
                 mRcvIndicator.setChecked(bundle.getBoolean(RCV_ENABLED, false));
             }
         }
     }
 
+    class CompareListener implements FileComparator.Listener {
+        private String mPathA;
+        private String mPathB;
+
+        CompareListener(String pathA, String pathB) {
+            mPathA = pathA;
+            mPathB = pathB;
+        }
+
+        @Override
+        public void onCompared(FileComparator.Result result) {
+            StringBuffer sb = new StringBuffer();
+            sb.append(String.format("%s: %d bytes\n", mPathA, result.lengthA));
+            sb.append(String.format("%s: %d bytes\n", mPathB, result.lengthB));
+            if (result.isMatched()) {
+                sb.append("Match");
+            } else {
+                sb.append(String.format("Not Match, %d ranges, first at byte %d",
+                            result.mismatches.size(), result.getFirst().start));
+                int shown = Math.min(MISMATCH_SHOWN, result.mismatches.size());
+                for (int i = 0; i < shown; i++) {
+                    sb.append("\n  ");
+                    sb.append(result.mismatches.get(i));
+                }
+                if (shown < result.mismatches.size()) {
+                    sb.append("\n  ...");
+                }
+            }
+            msgShow("compare", sb);
+        }
+
+        @Override
+        public void onError(IOException e) {
+            msgShow("comapre fail", e.toString());
+            e.printStackTrace();
+        }
+    }
+
+    class GeneratorListener implements TrafficGenerator.Listener {
+        @Override
+        public void onFinished(final TrafficGenerator generator) {
+            msgShow("timer", String.format("sent %d, skipped %d ticks",
+                        generator.getSent(), generator.getSkipped()));
+
+            // stopped or done, received data is not verified any longer.
+            // On UI thread as startTimer, so a newer verifier is kept.
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    SequenceVerifier verifier = mVerifier;
+                    if (mGenerator == generator && verifier != null) {
+                        mVerifier = null;
+                        msgShow("verify", verifier.toString());
+                    }
+                }
+            });
+            updateView(DISMISS_TIMER_DIALOG, null);
+        }
+    }
+
+    class PingListener implements PingPong.Listener {
+        @Override
+        public void onFinished(PingPong ping) {
+            if (mPing == ping) {
+                mPing = null;
+            }
+
+            LatencyHistogram rtt = ping.getRtt();
+            msgShow("ping", String.format("%ssent %d, received %d, lost %d, "
+                        + "late %d, reordered %d, duplicated %d",
+                        ping.isCancelled() ? "cancelled, " : "",
+                        ping.getSent(),
+                        ping.getReceived(),
+                        ping.getLost(),
+                        ping.getLate(),
+                        ping.getReordered(),
+                        ping.getDuplicated()));
+            msgShow("rtt", String.format("p50 %d us, p99 %d us, max %d us",
+                        rtt.getPercentile(50),
+                        rtt.getPercentile(99),
+                        rtt.getMax()));
+        }
+    }
+
+    class SenderListener implements FileSender.Listener {
+        private FileSender mOwner;
+
+        SenderListener(FileSender owner) {
+            mOwner = owner;
+        }
+
+        @Override
+        public void onProgress(long done, long total) {
+            msgShow("progress", String.format("%d of %d bytes", done, total));
+        }
+
+        @Override
+        public void onFinished(long sent, long failed, boolean cancelled) {
+            if (mSender == mOwner) {
+                mSender = null;
+            }
+            finishMeasure(cancelled);
+            if (cancelled) {
+                msgShow("send", "cancelled, " + sent + " bytes sent");
+                return;
+            }
+
+            msgShow("window", String.format("usage %.0f%%, max in flight %d of %d",
+                        mQueue.getWindowUsage() * 100,
+                        mQueue.getMaxInFlight(),
+                        mQueue.getWindowSize()));
+            msgShow("link", String.format("timeouts %d, retries %d, failed %d, stalls %d",
+                        mQueue.getTimeoutCount(),
+                        mQueue.getRetryCount(),
+                        mQueue.getFailedCount(),
+                        mQueue.getStallCount()));
+        }
+    }
+
+    /* subscribed to notifications of TRANS_TX only */
+    class ReceiveListener extends Gatt.ListenerHelper {
+        ReceiveListener() {
+            super("ActivityTransparent.Receive");
+        }
+
+        @Override
+        public void onCharacteristicChanged(Gatt gatt, GattCharacteristic chrc) {
+            onReceived(chrc.getValue());
+        }
+    }
+
     class GattListener extends Gatt.ListenerHelper {
 
         GattListener() {
@@ -647,11 +1143,6 @@ public class ActivityTransparent extends Activity implements
 
         @Override
         public void onConnectionStateChange(Gatt gatt, int status, int newState) {
-            if (!mDevice.getAddress().equals(gatt.getDevice().getAddress())) {
-                // not the device I care about
-                return;
-            }
-
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 onConnected();
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
@@ -664,6 +1155,13 @@ public class ActivityTransparent extends Activity implements
             onDiscovered();
         }
 
+        @Override
+        public void onMtuChanged(Gatt gatt, int mtu, int status) {
+            if (status == Gatt.GATT_SUCCESS) {
+                updatePayload(mtu);
+            }
+        }
+
         @Override
         public void onCharacteristicRead(Gatt gatt, GattCharacteristic charac, int status) {
             Log.d("read char, uuid=" + charac.getUuid().toString());
@@ -672,39 +1170,6 @@ public class ActivityTransparent extends Activity implements
             for (int i = 0; i < value.length; i++) {
                 Log.d("[" + i + "]" + Byte.toString(value[i]));
             }
-            mQueue.onConsumed();
-        }
-
-        @Override
-        public void onCharacteristicChanged(Gatt gatt, GattCharacteristic chrc) {
-            Log.d("on chr changed" );
-            if (chrc.getUuid().equals(Bluebit.CHR_ISSC_TRANS_TX)) {
-                onReceived(chrc.getValue());
-            }
-        }
-
-        @Override
-        public void onCharacteristicWrite(Gatt gatt, GattCharacteristic charac, int status) {
-            if (status == Gatt.GATT_SUCCESS) {
-                mSuccess +=charac.getValue().length;
-            } else {
-                mFail += charac.getValue().length;
-            }
-
-            String s = String.format("%d bytes, success= %d, fail= %d, pending= %d",
-                    charac.getValue().length,
-                    mSuccess,
-                    mFail,
-                    mQueue.size());
-            msgShow("wrote", s);
-            mQueue.onConsumed();
-            if (mQueue.size() == 0 && mStartTime != null) {
-                long elapse =  Calendar.getInstance().getTimeInMillis()
-                    - mStartTime.getTimeInMillis();
-                msgShow("time", "spent " + (elapse / 1000) + " seconds");
-                mStartTime = null;
-            }
-            updateView(CONSUME_TRANSACTION, null);
         }
 
         @Override
@@ -724,11 +1189,57 @@ public class ActivityTransparent extends Activity implements
         }
     }
 
+    /* Several writes might be in flight, the value of characteristic in
+     * callback belongs to the latest one rather than the finished one. The
+     * scheduler tells which transaction is done. */
+    class TransactListener implements GattScheduler.Listener {
+        @Override
+        public void onTransacted(GattTransaction done, int status) {
+            if (!done.isWrite || !done.isForCharacteristic()) {
+                return;
+            }
+
+            // a failed one will be written again if it has retries left
+            if (status == Gatt.GATT_SUCCESS) {
+                mSuccess.addAndGet(done.length);
+                long latency = (done.sentAt != 0) ? System.nanoTime() - done.sentAt : -1;
+                mMeter.onDone(done.length, latency);
+
+                FileSender sender = mSender;
+                if (sender != null) {
+                    sender.onDone(done, true);
+                }
+                TrafficGenerator generator = mGenerator;
+                if (generator != null) {
+                    generator.onDone(done);
+                }
+            } else {
+                mFail.addAndGet(done.length);
+            }
+
+            TransactionQueue queue = mQueue;
+            String s = String.format("%d bytes, success= %d, fail= %d, pending= %d",
+                    done.length,
+                    mSuccess.get(),
+                    mFail.get(),
+                    (queue == null) ? 0 : queue.size());
+            msgShow("wrote", s);
+            updateView(CONSUME_TRANSACTION, null);
+        }
+    }
+
     class SrvConnection implements ServiceConnection {
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder service) {
             mService = ((LeService.LocalBinder)service).getService();
-            mService.addListener(mListener);
+            if (!acquireQueue()) {
+                Log.e("no connection to the device, closing");
+                finish();
+                return;
+            }
+            mService.subscribe(mDevice, mListener);
+            mService.subscribe(mDevice, Bluebit.SERVICE_ISSC_PROPRIETARY,
+                    Bluebit.CHR_ISSC_TRANS_TX, mReceiver);
 
             int conn = mService.getConnectionState(mDevice);
             if (conn == BluetoothProfile.STATE_DISCONNECTED) {
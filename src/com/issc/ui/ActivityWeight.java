@@ -67,11 +67,11 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-public class ActivityWeight extends Activity implements
-    TransactionQueue.Consumer<GattTransaction> {
+public class ActivityWeight extends Activity {
 
     private LeService mService;
     private Gatt.Listener mListener;
+    private Gatt.Listener mNotifyListener;
     private SrvConnection mConn;
     private ScanCallback mScanCallback;
 
@@ -100,7 +100,9 @@ public class ActivityWeight extends Activity implements
     private GattService        mProprietary;
     private GattCharacteristic mAirPatch;
 
+    /* queue of the connected device, in scheduler of LeService */
     private TransactionQueue mQueue;
+    private final static String CLIENT = "Weight";
 
     private TextView mKg;
     private TextView mLb;
@@ -122,20 +124,13 @@ public class ActivityWeight extends Activity implements
         mLoader = findViewById(R.id.loader);
         mName = (TextView) findViewById(R.id.weight_name);
 
-        mQueue = new TransactionQueue(this);
-
         mViewHandler = new ViewHandler();
         mListener = new GattListener();
+        mNotifyListener = new NotifyListener();
         mScanCallback = new ScanCallback();
         mConn = new SrvConnection();
     }
 
-    @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        mQueue.clear();
-    }
-
     @Override
     protected void onResume() {
         super.onResume();
@@ -146,10 +141,11 @@ public class ActivityWeight extends Activity implements
     protected void onPause() {
         super.onPause();
         stopScanningTarget();
-        mService.rmListener(mListener);
+        unsubscribe();
         mService.disconnect(mDevice);
+        // queues of the device are gone with its session
         mService.closeGatt(mDevice);
-        mQueue.clear();
+        mQueue = null;
         unbindService(mConn);
     }
 
@@ -197,8 +193,22 @@ public class ActivityWeight extends Activity implements
         writeName(newName);
     }
 
+    private void subscribe() {
+        mService.subscribe(mDevice, mListener);
+        mService.subscribe(mDevice, mUuidFFF0, mUuidFFF4, mNotifyListener);
+        mService.subscribe(mDevice, Bluebit.SERVICE_ISSC_PROPRIETARY,
+                Bluebit.CHR_AIR_PATCH, mNotifyListener);
+    }
+
+    private void unsubscribe() {
+        mService.unsubscribe(mListener);
+        mService.unsubscribe(mNotifyListener);
+    }
+
     private void connectDevice() {
+        subscribe();
         mService.connectGatt(this, false, mDevice);
+        mQueue = mService.getScheduler(mDevice).getQueue(CLIENT);
         mService.connect(mDevice, false);
     }
 
@@ -230,6 +240,10 @@ public class ActivityWeight extends Activity implements
         mFFF4 = null;
         mCCC = null;
         mProprietary = null;
+        // next target might be another device
+        unsubscribe();
+        mService.closeGatt(mDevice);
+        mQueue = null;
         scanTarget();
     }
 
@@ -239,9 +253,10 @@ public class ActivityWeight extends Activity implements
         diggServices();
 
         // enable notification to get update from Weight Scale
-        mService.setCharacteristicNotification(mFFF4, true);
+        mService.setCharacteristicNotification(mDevice, mFFF4, true);
         GattTransaction t = new GattTransaction(mCCC,
                 mCCC.getConstantBytes(GattDescriptor.ENABLE_NOTIFICATION_VALUE));
+        t.priority = GattTransaction.PRIORITY_CONTROL;
         mQueue.add(t);
 
         enableAirPatch();
@@ -265,6 +280,7 @@ public class ActivityWeight extends Activity implements
         Log.d("proprietary, enabling air patch");
         byte[] enable = {(byte)0x03};
         GattTransaction t = new GattTransaction(mAirPatch, enable);
+        t.priority = GattTransaction.PRIORITY_CONTROL;
         mQueue.add(t);
     }
 
@@ -306,6 +322,7 @@ public class ActivityWeight extends Activity implements
         e2prom.put((byte)max);
         e2prom.put(data.array());
         GattTransaction t1 = new GattTransaction(mAirPatch, e2prom.array());
+        t1.priority = GattTransaction.PRIORITY_CONTROL;
         mQueue.add(t1);
 
         // update RAM to update immediately.
@@ -319,6 +336,7 @@ public class ActivityWeight extends Activity implements
         memory.put((byte)max);
         memory.put(data.array());
         GattTransaction t2 = new GattTransaction(mAirPatch, memory.array());
+        t2.priority = GattTransaction.PRIORITY_CONTROL;
         mQueue.add(t2);
     }
 
@@ -424,26 +442,6 @@ public class ActivityWeight extends Activity implements
         mSt.setText(sDF.format(st));
     }
 
-    @Override
-    public void onTransact(GattTransaction t) {
-        if (t.isForCharacteristic()) {
-            if (t.isWrite) {
-                Log.d("gatt writing characteristic");
-                t.chr.setValue(t.value);
-                mService.writeCharacteristic(t.chr);
-            } else {
-                t.chr.setValue(t.value);
-                boolean r = mService.readCharacteristic(t.chr);
-                Log.d("gatt reading characteristic:" + r);
-            }
-        } else if (t.isForDescriptor()) {
-            if (t.isWrite) {
-                t.desc.setValue(t.value);
-                mService.writeDescriptor(t.desc);
-            }
-        }
-    }
-
     class ScanCallback implements GattAdapter.LeScanCallback {
         @Override
         public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
@@ -454,37 +452,21 @@ public class ActivityWeight extends Activity implements
         }
     }
 
-    class GattListener extends Gatt.ListenerHelper {
-        GattListener() {
-            super("ActivityWeight");
-        }
-
-        @Override
-        public void onConnectionStateChange(Gatt gatt,
-                int status, int newState) {
-            BluetoothDevice device = gatt.getDevice();
-            if (!mDevice.getAddress().equals(device.getAddress())) {
-                // not the device I care about
-                return;
-            }
-            if (newState ==  BluetoothProfile.STATE_CONNECTED) {
-                Log.d("connected to device");
-                onConnected();
-            } else if (newState ==  BluetoothProfile.STATE_DISCONNECTED) {
-                onDisconnected();
-            }
+    /* subscribed to notifications of FFF4 and AirPatch */
+    class NotifyListener extends Gatt.ListenerHelper {
+        NotifyListener() {
+            super("ActivityWeight.Notify");
         }
 
         @Override
         public void onCharacteristicChanged(Gatt gatt, GattCharacteristic chrc) {
-            Log.d("on chr changed");
-            if (chrc.getUuid().equals(mFFF4.getUuid())) {
+            if (chrc.getUuid().equals(mUuidFFF4)) {
                 Log.d("Got Weight value, update view");
                 final int index = 4; // got this index from Frontline
                 byte[] data = chrc.getValue();
                 int value = ((0xFF & data[index]) << 8) + (0xFF & data[index + 1]);
                 updateValue(value);
-            } else if (chrc.getUuid().equals(mAirPatch.getUuid())){
+            } else {
                 Log.d("Got Value update from AirPatch");
                 byte[] data = chrc.getValue();
                 for (int i = 0; i < data.length; i++) {
@@ -495,34 +477,44 @@ public class ActivityWeight extends Activity implements
                     // finished writing memory
                     updateView(HIDE_LOADER, null);
                 }
-            } else {
-                Log.d("Unknown chr:" + chrc.getUuid().toString());
+            }
+        }
+    }
+
+    class GattListener extends Gatt.ListenerHelper {
+        GattListener() {
+            super("ActivityWeight");
+        }
+
+        @Override
+        public void onConnectionStateChange(Gatt gatt,
+                int status, int newState) {
+            if (newState ==  BluetoothProfile.STATE_CONNECTED) {
+                Log.d("connected to device");
+                onConnected();
+            } else if (newState ==  BluetoothProfile.STATE_DISCONNECTED) {
+                onDisconnected();
             }
         }
 
         @Override
         public void onCharacteristicRead(Gatt gatt, GattCharacteristic charac, int status) {
             Log.d("on chr read:" + status);
-            byte[] value = charac.getValue();
-            mQueue.onConsumed();
         }
 
         @Override
         public void onCharacteristicWrite(Gatt gatt, GattCharacteristic charac, int status) {
             Log.d("on chr write:" + status);
-            mQueue.onConsumed();
         }
 
         @Override
         public void onDescriptorRead(Gatt gatt, GattDescriptor desc, int status) {
             Log.d("on desc read:" + status);
-            mQueue.onConsumed();
         }
 
         @Override
         public void onDescriptorWrite(Gatt gatt, GattDescriptor desc, int status) {
             Log.d("on desc write:" + status);
-            mQueue.onConsumed();
         }
 
         @Override
@@ -535,7 +527,6 @@ public class ActivityWeight extends Activity implements
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder service) {
             mService = ((LeService.LocalBinder)service).getService();
-            mService.addListener(mListener);
             scanTarget();
         }
 
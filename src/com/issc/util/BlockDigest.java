@@ -0,0 +1,102 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MD5 of each fixed-size block of a stream, computed as data comes.
+ *
+ * Two streams with the same block size could be compared block by block,
+ * without keeping any of the data.
+ */
+public class BlockDigest {
+
+    private int mBlockSize;
+    private MessageDigest mDigest;
+    private List<byte[]> mBlocks;
+    private int mFill = 0; // bytes of current block
+    private long mLength = 0;
+    private boolean mFinished = false;
+
+    public BlockDigest(int blockSize) {
+        mBlockSize = blockSize;
+        mDigest = newDigest();
+        mBlocks = new ArrayList<byte[]>();
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every platform has MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public synchronized void update(byte[] data, int offset, int length) {
+        if (mFinished) {
+            throw new IllegalStateException("update a finished digest");
+        }
+
+        mLength += length;
+        while (length > 0) {
+            int n = Math.min(length, mBlockSize - mFill);
+            mDigest.update(data, offset, n);
+            offset += n;
+            length -= n;
+            mFill  += n;
+            if (mFill == mBlockSize) {
+                mBlocks.add(mDigest.digest());
+                mFill = 0;
+            }
+        }
+    }
+
+    /**
+     * No more data, the last partial block is digested.
+     */
+    public synchronized void finish() {
+        if (!mFinished && mFill > 0) {
+            mBlocks.add(mDigest.digest());
+            mFill = 0;
+        }
+        mFinished = true;
+    }
+
+    public synchronized boolean isFinished() {
+        return mFinished;
+    }
+
+    public synchronized long getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return digests of finished blocks in order.
+     */
+    public synchronized byte[][] getBlocks() {
+        return mBlocks.toArray(new byte[mBlocks.size()][]);
+    }
+}
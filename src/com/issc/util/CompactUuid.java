@@ -0,0 +1,165 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.util;
+
+import java.util.UUID;
+
+/**
+ * A UUID which keeps SIG short forms as they are.
+ *
+ * UUIDs on the Bluetooth base UUID 0000xxxx-0000-1000-8000-00805F9B34FB
+ * are kept as a 16 or 32-bit int, others as two longs. Strings are parsed
+ * without regular expressions.
+ */
+public final class CompactUuid {
+
+    private final static long BASE_MSB = 0x0000000000001000L;
+    private final static long BASE_LSB = 0x800000805F9B34FBL;
+
+    private final boolean mShort;
+    private final int mValue;       // 16 or 32 bits of a short form
+    private final long mMsb;        // only for 128-bit ones
+    private final long mLsb;
+
+    private CompactUuid(int value) {
+        mShort = true;
+        mValue = value;
+        mMsb = 0;
+        mLsb = 0;
+    }
+
+    private CompactUuid(long msb, long lsb) {
+        mShort = false;
+        mValue = 0;
+        mMsb = msb;
+        mLsb = lsb;
+    }
+
+    /**
+     * @param value 16 or 32-bit UUID assigned by SIG, such as 0x180F.
+     */
+    public static CompactUuid fromShort(int value) {
+        return new CompactUuid(value);
+    }
+
+    public static CompactUuid from(long msb, long lsb) {
+        if (lsb == BASE_LSB && (msb & 0xFFFFFFFFL) == BASE_MSB) {
+            return new CompactUuid((int)(msb >>> 32));
+        }
+        return new CompactUuid(msb, lsb);
+    }
+
+    public static CompactUuid from(UUID uuid) {
+        return from(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * @param str 4 or 8 hex digits of a short form, or 128-bit UUID such as
+     *        00001800-0000-1000-8000-00805f9b34fb
+     * @return null if it is not any of them.
+     */
+    public static CompactUuid parse(String str) {
+        int len = str.length();
+        if (len == 4 || len == 8) {
+            long value = parseHex(str, 0, len);
+            return (value < 0) ? null : new CompactUuid((int)value);
+        }
+
+        if (len != 36
+                || str.charAt(8) != '-'
+                || str.charAt(13) != '-'
+                || str.charAt(18) != '-'
+                || str.charAt(23) != '-') {
+            return null;
+        }
+
+        long a = parseHex(str, 0, 8);
+        long b = parseHex(str, 9, 13);
+        long c = parseHex(str, 14, 18);
+        long d = parseHex(str, 19, 23);
+        long e = parseHex(str, 24, 36);
+        if (a < 0 || b < 0 || c < 0 || d < 0 || e < 0) {
+            return null;
+        }
+        return from((a << 32) | (b << 16) | c, (d << 48) | e);
+    }
+
+    /* at most 15 digits, -1 if any of them is not hex */
+    private static long parseHex(String str, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = Character.digit(str.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * @return true if it is on the Bluetooth base UUID.
+     */
+    public boolean isShort() {
+        return mShort;
+    }
+
+    /**
+     * @return the 16 or 32-bit value, only meaningful if isShort().
+     */
+    public int getShort() {
+        return mValue;
+    }
+
+    public long getMostSignificantBits() {
+        return mShort ? ((mValue & 0xFFFFFFFFL) << 32) | BASE_MSB : mMsb;
+    }
+
+    public long getLeastSignificantBits() {
+        return mShort ? BASE_LSB : mLsb;
+    }
+
+    public UUID toUuid() {
+        return new UUID(getMostSignificantBits(), getLeastSignificantBits());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CompactUuid)) {
+            return false;
+        }
+        CompactUuid u = (CompactUuid)o;
+        if (mShort || u.mShort) {
+            return mShort == u.mShort && mValue == u.mValue;
+        }
+        return mMsb == u.mMsb && mLsb == u.mLsb;
+    }
+
+    @Override
+    public int hashCode() {
+        if (mShort) {
+            return mValue;
+        }
+        long h = mMsb ^ mLsb;
+        return (int)(h >> 32) ^ (int)h;
+    }
+
+    @Override
+    public String toString() {
+        return toUuid().toString();
+    }
+}
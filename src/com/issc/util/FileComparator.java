@@ -0,0 +1,283 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compare two files without reading them into memory.
+ *
+ * Both files are cut into fixed-size blocks, and blocks are hashed by
+ * several threads. Only the blocks whose digests differ are read again
+ * and compared byte by byte, to find out the exact ranges that mismatch.
+ */
+public class FileComparator {
+
+    /** Default bytes of a block. */
+    public final static int BLOCK_SIZE = 4096;
+
+    private int mBlockSize;
+    private int mThreads;
+    private ExecutorService mWorkers;
+    private ExecutorService mCoordinator;
+
+    public FileComparator(int blockSize) {
+        mBlockSize = blockSize;
+        mThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        mWorkers = Executors.newFixedThreadPool(mThreads);
+        mCoordinator = Executors.newSingleThreadExecutor();
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    /**
+     * Compare in background, the result is reported to listener in
+     * a background thread.
+     *
+     * @param knownB digests of pathB computed while it was written, or
+     *        null. It is used only if it is finished and fits the file.
+     */
+    public void compare(final String pathA,
+            final String pathB,
+            final BlockDigest knownB,
+            final Listener listener) {
+
+        mCoordinator.submit(new Runnable() {
+            public void run() {
+                try {
+                    listener.onCompared(compareNow(pathA, pathB, knownB));
+                } catch (IOException e) {
+                    listener.onError(e);
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        mCoordinator.shutdownNow();
+        mWorkers.shutdownNow();
+    }
+
+    private Result compareNow(String pathA, String pathB, BlockDigest knownB)
+        throws IOException {
+
+        Result result = new Result();
+        result.lengthA = new File(pathA).length();
+        result.lengthB = new File(pathB).length();
+
+        byte[][] blocksB = null;
+        if (knownB != null
+                && knownB.isFinished()
+                && knownB.getBlockSize() == mBlockSize
+                && knownB.getLength() == result.lengthB) {
+            blocksB = knownB.getBlocks();
+            result.reusedDigest = true;
+        }
+
+        // hash both files at the same time
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        byte[][] blocksA = hashInParallel(pathA, result.lengthA, futures);
+        if (blocksB == null) {
+            blocksB = hashInParallel(pathB, result.lengthB, futures);
+        }
+        waitFor(futures);
+
+        long common = Math.min(result.lengthA, result.lengthB);
+        int commonBlocks = (int)((common + mBlockSize - 1) / mBlockSize);
+        RandomAccessFile fileA = new RandomAccessFile(pathA, "r");
+        RandomAccessFile fileB = new RandomAccessFile(pathB, "r");
+        try {
+            byte[] bufA = new byte[mBlockSize];
+            byte[] bufB = new byte[mBlockSize];
+            for (int i = 0; i < commonBlocks; i++) {
+                if (!Arrays.equals(blocksA[i], blocksB[i])) {
+                    long start = (long)i * mBlockSize;
+                    int length = (int)Math.min(mBlockSize, common - start);
+                    refine(fileA, fileB, bufA, bufB, start, length, result);
+                }
+            }
+        } finally {
+            fileA.close();
+            fileB.close();
+        }
+
+        if (result.lengthA != result.lengthB) {
+            result.addMismatch(common, Math.max(result.lengthA, result.lengthB));
+        }
+        return result;
+    }
+
+    /* queue tasks to hash the file, digests are ready once tasks are done */
+    private byte[][] hashInParallel(final String path,
+            long length,
+            List<Future<Void>> futures) {
+
+        int blocks = (int)((length + mBlockSize - 1) / mBlockSize);
+        final byte[][] digests = new byte[blocks][];
+        int perTask = Math.max(1, (blocks + mThreads - 1) / mThreads);
+        for (int from = 0; from < blocks; from += perTask) {
+            final int first = from;
+            final int last  = Math.min(blocks, from + perTask);
+            futures.add(mWorkers.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    hashBlocks(path, first, last, digests);
+                    return null;
+                }
+            }));
+        }
+        return digests;
+    }
+
+    private void hashBlocks(String path, int first, int last, byte[][] digests)
+        throws IOException {
+
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            MessageDigest md = BlockDigest.newDigest();
+            ByteBuffer buf = ByteBuffer.allocate(mBlockSize);
+            for (int i = first; i < last; i++) {
+                buf.clear();
+                long pos = (long)i * mBlockSize;
+                while (buf.hasRemaining()) {
+                    int n = channel.read(buf, pos + buf.position());
+                    if (n < 0) {
+                        break;
+                    }
+                }
+                md.update(buf.array(), 0, buf.position());
+                digests[i] = md.digest();
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private void waitFor(List<Future<Void>> futures) throws IOException {
+        try {
+            for (Future<Void> f: futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("compare interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException(cause.toString());
+        }
+    }
+
+    /* find mismatching bytes of a block */
+    private void refine(RandomAccessFile fileA,
+            RandomAccessFile fileB,
+            byte[] bufA,
+            byte[] bufB,
+            long start,
+            int length,
+            Result result) throws IOException {
+
+        fileA.seek(start);
+        fileA.readFully(bufA, 0, length);
+        fileB.seek(start);
+        fileB.readFully(bufB, 0, length);
+
+        int i = 0;
+        while (i < length) {
+            if (bufA[i] == bufB[i]) {
+                i++;
+                continue;
+            }
+
+            int from = i;
+            while (i < length && bufA[i] != bufB[i]) {
+                i++;
+            }
+            result.addMismatch(start + from, start + i);
+        }
+    }
+
+    /**
+     * A range of bytes, from start to end exclusive.
+     */
+    public static class Range {
+        public long start;
+        public long end;
+
+        Range(long s, long e) {
+            start = s;
+            end = e;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%d, %d)", start, end);
+        }
+    }
+
+    public static class Result {
+        public long lengthA;
+        public long lengthB;
+        /* true if digests of the second file were computed on receiving */
+        public boolean reusedDigest = false;
+        public List<Range> mismatches = new ArrayList<Range>();
+
+        public boolean isMatched() {
+            return mismatches.isEmpty();
+        }
+
+        /**
+         * @return the first mismatching range, or null if matched.
+         */
+        public Range getFirst() {
+            return isMatched() ? null : mismatches.get(0);
+        }
+
+        /* ranges come in order, join the adjacent ones */
+        void addMismatch(long start, long end) {
+            if (!mismatches.isEmpty()) {
+                Range prev = mismatches.get(mismatches.size() - 1);
+                if (prev.end == start) {
+                    prev.end = end;
+                    return;
+                }
+            }
+            mismatches.add(new Range(start, end));
+        }
+    }
+
+    public interface Listener {
+        public void onCompared(Result result);
+        public void onError(IOException e);
+    }
+}
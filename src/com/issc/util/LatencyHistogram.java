@@ -0,0 +1,151 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.util;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds, could be recorded by any thread.
+ *
+ * Each power of 2 is split into 4 buckets, so a percentile is reported
+ * within 25% of the real value. Recording never allocates.
+ */
+public class LatencyHistogram {
+
+    /* values up to 2^40 us are kept, larger ones go to the last bucket */
+    private final static int MAJOR_MAX = 40;
+    private final static int BUCKETS = (MAJOR_MAX - 1) * 4 + 4;
+
+    private AtomicLongArray mBuckets;
+    private AtomicLong mCount;
+    private AtomicLong mSum;
+    private AtomicLong mMax;
+
+    public LatencyHistogram() {
+        mBuckets = new AtomicLongArray(BUCKETS);
+        mCount = new AtomicLong(0);
+        mSum = new AtomicLong(0);
+        mMax = new AtomicLong(0);
+    }
+
+    public void recordNanos(long ns) {
+        record(ns / 1000);
+    }
+
+    /**
+     * @param us latency in microseconds
+     */
+    public void record(long us) {
+        us = Math.max(0, us);
+        mBuckets.incrementAndGet(indexOf(us));
+        mCount.incrementAndGet();
+        mSum.addAndGet(us);
+
+        long max = mMax.get();
+        while (us > max && !mMax.compareAndSet(max, us)) {
+            max = mMax.get();
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @return the largest latency in microseconds.
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getMean() {
+        long count = mCount.get();
+        return (count == 0) ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * @param p from 0 to 100
+     * @return upper bound of the bucket where the percentile falls, in
+     *         microseconds. 0 if nothing recorded.
+     */
+    public long getPercentile(double p) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long)Math.ceil(count * p / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Write non-empty buckets as CSV rows: lower bound, upper bound, count.
+     */
+    public void writeCsv(PrintWriter out) {
+        out.println("from_us,to_us,count");
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = mBuckets.get(i);
+            if (n != 0) {
+                out.println(lowerBound(i) + "," + upperBound(i) + "," + n);
+            }
+        }
+    }
+
+    private static int indexOf(long us) {
+        if (us < 4) {
+            return (int)us;
+        }
+
+        int major = 63 - Long.numberOfLeadingZeros(us);
+        if (major > MAJOR_MAX) {
+            return BUCKETS - 1;
+        }
+        int sub = (int)((us >> (major - 2)) & 3);
+        return (major - 1) * 4 + sub;
+    }
+
+    private static long lowerBound(int idx) {
+        if (idx < 4) {
+            return idx;
+        }
+        int major = idx / 4 + 1;
+        int sub = idx % 4;
+        return ((long)(4 + sub)) << (major - 2);
+    }
+
+    private static long upperBound(int idx) {
+        return lowerBound(idx + 1) - 1;
+    }
+}
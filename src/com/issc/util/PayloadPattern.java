@@ -0,0 +1,115 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.util;
+
+import java.util.Random;
+
+/**
+ * Content of generated packets.
+ *
+ * A packet starts with its sequence number in 4 bytes, big endian. The
+ * rest is filled by a pattern which only depends on the sequence number
+ * and position, so receiver could check it without knowing the sender.
+ */
+public class PayloadPattern {
+
+    /** Bytes of sequence number at head of packet. */
+    public final static int SEQ_BYTES = 4;
+
+    public final static int ZERO      = 0;
+    public final static int INCREMENT = 1;
+    public final static int ASCII     = 2;
+    public final static int RANDOM    = 3;
+
+    /* same seed at both sides, so random content could be checked */
+    private final static long RANDOM_SEED = 0x1553C;
+
+    private int mType;
+    private byte[] mTable;
+
+    public PayloadPattern(int type) {
+        mType = type;
+        mTable = new byte[256];
+        if (type == RANDOM) {
+            new Random(RANDOM_SEED).nextBytes(mTable);
+        } else {
+            for (int i = 0; i < mTable.length; i++) {
+                mTable[i] = expected(type, i);
+            }
+        }
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * Write a packet into buf[off, off + len), never allocates.
+     */
+    public void fill(byte[] buf, int off, int len, long seq) {
+        int head = Math.min(len, SEQ_BYTES);
+        for (int i = 0; i < head; i++) {
+            buf[off + i] = (byte)(seq >>> (8 * (SEQ_BYTES - 1 - i)));
+        }
+
+        int shift = (mType == RANDOM) ? (int)seq : 0;
+        for (int i = head; i < len; i++) {
+            buf[off + i] = mTable[(shift + i) & 0xFF];
+        }
+    }
+
+    /**
+     * @return sequence number of a packet, -1 if it is too short.
+     */
+    public long readSeq(byte[] data) {
+        if (data.length < SEQ_BYTES) {
+            return -1;
+        }
+
+        long seq = 0;
+        for (int i = 0; i < SEQ_BYTES; i++) {
+            seq = (seq << 8) | (data[i] & 0xFF);
+        }
+        return seq;
+    }
+
+    /**
+     * @return true if content after sequence number fits the pattern.
+     */
+    public boolean matches(byte[] data) {
+        if (data.length < SEQ_BYTES) {
+            return false;
+        }
+
+        int shift = (mType == RANDOM) ? (int)readSeq(data) : 0;
+        for (int i = SEQ_BYTES; i < data.length; i++) {
+            if (data[i] != mTable[(shift + i) & 0xFF]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte expected(int type, int pos) {
+        if (type == INCREMENT) {
+            return (byte)pos;
+        } else if (type == ASCII) {
+            return (byte)('0' + pos % 10);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,270 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.util;
+
+import com.issc.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Record received data to a file without blocking the receiver.
+ *
+ * Data is copied into a preallocated ring buffer, a writer thread takes
+ * whatever is in the ring and writes it in one go. The writer waits until
+ * enough bytes are buffered, or the oldest buffered byte waited too long,
+ * so many small packets share one write. If the ring is full, new data is
+ * dropped and counted rather than blocking the receiver.
+ */
+public class ReceiveRecorder {
+
+    /** Default bytes to buffer before writing. */
+    public final static int FLUSH_BYTES = 4096;
+    /** Default time a byte could stay in buffer, in milliseconds. */
+    public final static long FLUSH_DELAY = 200;
+
+    private FileOutputStream mStream;
+    private Thread mWriter;
+
+    private Object mLock;
+    private byte[] mRing;
+    private int mHead  = 0; // next byte to write to file
+    private int mCount = 0; // bytes in ring
+    private long mOldest = 0; // when the oldest byte in ring arrived
+
+    private int  mFlushBytes = FLUSH_BYTES;
+    private long mFlushDelay = FLUSH_DELAY;
+    private boolean mSync = false;
+
+    private BlockDigest mDigest;
+
+    private boolean mClosing = false;
+    private IOException mError;
+
+    private long mReceived = 0;
+    private long mWritten  = 0;
+    private long mDropped  = 0;
+    private long mBatches  = 0;
+
+    public ReceiveRecorder(File file, int capacity) throws IOException {
+        mStream = new FileOutputStream(file, false);
+        mLock = new Object();
+        mRing = new byte[capacity];
+        mWriter = new Thread(new Writer(), "ReceiveRecorder");
+    }
+
+    /**
+     * @param bytes write once this many bytes are buffered
+     * @param delay write once the oldest byte waited this long
+     * @param sync sync to storage after each write, safer but slower
+     */
+    public void setFlushPolicy(int bytes, long delay, boolean sync) {
+        synchronized(mLock) {
+            mFlushBytes = Math.max(1, Math.min(bytes, mRing.length));
+            mFlushDelay = delay;
+            mSync = sync;
+            mLock.notify();
+        }
+    }
+
+    /**
+     * Keep digests of recorded data, it is finished once the file is closed.
+     * Should be set before starting.
+     */
+    public void setBlockDigest(BlockDigest digest) {
+        mDigest = digest;
+    }
+
+    public void start() {
+        mWriter.start();
+    }
+
+    /**
+     * Buffer data to record, never touches storage.
+     *
+     * @return false if it was dropped since the buffer is full.
+     */
+    public boolean offer(byte[] data) {
+        synchronized(mLock) {
+            mReceived += data.length;
+            if (mClosing || mError != null
+                    || data.length > mRing.length - mCount) {
+                mDropped += data.length;
+                return false;
+            }
+
+            if (mCount == 0) {
+                mOldest = System.currentTimeMillis();
+            }
+
+            int tail  = (mHead + mCount) % mRing.length;
+            int first = Math.min(data.length, mRing.length - tail);
+            System.arraycopy(data, 0, mRing, tail, first);
+            System.arraycopy(data, first, mRing, 0, data.length - first);
+            mCount += data.length;
+
+            if (mCount >= mFlushBytes) {
+                mLock.notify();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Write what is buffered and close the file. It does not wait for the
+     * writer thread.
+     */
+    public void close() {
+        synchronized(mLock) {
+            mClosing = true;
+            mLock.notify();
+        }
+    }
+
+    public long getReceived() {
+        synchronized(mLock) {
+            return mReceived;
+        }
+    }
+
+    public long getWritten() {
+        synchronized(mLock) {
+            return mWritten;
+        }
+    }
+
+    public long getDropped() {
+        synchronized(mLock) {
+            return mDropped;
+        }
+    }
+
+    /**
+     * @return how many writes to storage, fewer is better.
+     */
+    public long getBatches() {
+        synchronized(mLock) {
+            return mBatches;
+        }
+    }
+
+    /**
+     * @return the error stopped recording, or null.
+     */
+    public IOException getError() {
+        synchronized(mLock) {
+            return mError;
+        }
+    }
+
+    class Writer implements Runnable {
+        public void run() {
+            while (true) {
+                int head;
+                int count;
+                boolean sync;
+                boolean closing;
+                synchronized(mLock) {
+                    waitForBatch();
+                    head    = mHead;
+                    count   = mCount;
+                    sync    = mSync;
+                    closing = mClosing;
+                }
+
+                // the range is not released yet, receiver never touches it
+                if (count > 0 && !writeRange(head, count, sync)) {
+                    break;
+                }
+
+                synchronized(mLock) {
+                    mHead = (mHead + count) % mRing.length;
+                    mCount -= count;
+                    mWritten += count;
+                    mBatches++;
+                    if (mCount > 0) {
+                        mOldest = System.currentTimeMillis();
+                    }
+                }
+
+                if (closing && count == 0) {
+                    break;
+                }
+            }
+            closeStream();
+        }
+
+        /* should be called with mLock held */
+        private void waitForBatch() {
+            while (!mClosing) {
+                long waited = System.currentTimeMillis() - mOldest;
+                if (mCount >= mFlushBytes
+                        || (mCount > 0 && waited >= mFlushDelay)) {
+                    return;
+                }
+
+                try {
+                    if (mCount == 0) {
+                        mLock.wait();
+                    } else {
+                        mLock.wait(mFlushDelay - waited);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private boolean writeRange(int head, int count, boolean sync) {
+            try {
+                int first = Math.min(count, mRing.length - head);
+                mStream.write(mRing, head, first);
+                if (count > first) {
+                    mStream.write(mRing, 0, count - first);
+                }
+                if (sync) {
+                    mStream.getFD().sync();
+                }
+
+                if (mDigest != null) {
+                    mDigest.update(mRing, head, first);
+                    mDigest.update(mRing, 0, count - first);
+                }
+                return true;
+            } catch (IOException e) {
+                Log.e("recording failed: " + e.getMessage());
+                synchronized(mLock) {
+                    mError = e;
+                }
+                return false;
+            }
+        }
+
+        private void closeStream() {
+            if (mDigest != null) {
+                mDigest.finish();
+            }
+
+            try {
+                mStream.close();
+            } catch (IOException e) {
+                Log.w("closing record failed: " + e.getMessage());
+            }
+        }
+    }
+}
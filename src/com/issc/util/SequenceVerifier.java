@@ -0,0 +1,163 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.util;
+
+/**
+ * Check sequence numbers of received packets.
+ *
+ * A bitmap remembers which of the latest WINDOW sequence numbers arrived.
+ * A number missing when it slides out of the window is counted as lost,
+ * one arriving below the highest number so far is counted as reordered,
+ * and one already in bitmap is a duplicate. Memory does not grow with
+ * the number of packets.
+ */
+public class SequenceVerifier {
+
+    /** How many sequence numbers are remembered, multiple of 64. */
+    public final static int WINDOW = 4096;
+
+    private PayloadPattern mPattern;
+    private long[] mBits;
+    private long mBase = 0;     // lowest sequence number in window
+    private long mHighest = -1; // highest sequence number received
+    private int  mInWindow = 0; // bits set in window
+
+    private long mReceived   = 0;
+    private long mLost       = 0; // missing and slid out of window
+    private long mDuplicated = 0;
+    private long mReordered  = 0;
+    private long mTooOld     = 0; // below window, could not be told
+    private long mCorrupted  = 0;
+    private long mShort      = 0;
+
+    public SequenceVerifier(PayloadPattern pattern) {
+        mPattern = pattern;
+        mBits = new long[WINDOW / 64];
+    }
+
+    /**
+     * Check a received packet, runs on any thread.
+     */
+    public synchronized void offer(byte[] data) {
+        long seq = mPattern.readSeq(data);
+        if (seq < 0) {
+            mShort++;
+            return;
+        }
+        if (!mPattern.matches(data)) {
+            mCorrupted++;
+        }
+        onSequence(seq);
+    }
+
+    private void onSequence(long seq) {
+        if (seq < mBase) {
+            mTooOld++;
+            return;
+        }
+
+        if (seq >= mBase + WINDOW) {
+            slide(seq - WINDOW + 1);
+        }
+
+        int bit = (int)(seq % WINDOW);
+        long mask = 1L << (bit & 63);
+        if ((mBits[bit >> 6] & mask) != 0) {
+            mDuplicated++;
+            return;
+        }
+
+        mBits[bit >> 6] |= mask;
+        mInWindow++;
+        mReceived++;
+        if (seq < mHighest) {
+            mReordered++;
+        } else {
+            mHighest = seq;
+        }
+    }
+
+    /* move window to start at base, count what never arrived */
+    private void slide(long base) {
+        if (base - mBase >= WINDOW) {
+            // nothing of current window remains, everything below base
+            // should have arrived
+            mLost += (base - mBase) - mInWindow;
+            for (int i = 0; i < mBits.length; i++) {
+                mBits[i] = 0;
+            }
+            mInWindow = 0;
+            mBase = base;
+            return;
+        }
+
+        for (; mBase < base; mBase++) {
+            int bit = (int)(mBase % WINDOW);
+            long mask = 1L << (bit & 63);
+            if ((mBits[bit >> 6] & mask) != 0) {
+                mBits[bit >> 6] &= ~mask;
+                mInWindow--;
+            } else {
+                mLost++;
+            }
+        }
+    }
+
+    public synchronized long getReceived() {
+        return mReceived;
+    }
+
+    /**
+     * @return sequence numbers missing so far, some of them might still
+     *         arrive late.
+     */
+    public synchronized long getMissing() {
+        long expected = Math.max(0, mHighest + 1 - mBase);
+        return mLost + expected - mInWindow;
+    }
+
+    public synchronized long getLost() {
+        return mLost;
+    }
+
+    public synchronized long getDuplicated() {
+        return mDuplicated;
+    }
+
+    public synchronized long getReordered() {
+        return mReordered;
+    }
+
+    public synchronized long getTooOld() {
+        return mTooOld;
+    }
+
+    public synchronized long getCorrupted() {
+        return mCorrupted;
+    }
+
+    public synchronized long getShort() {
+        return mShort;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("received %d, missing %d, duplicated %d, "
+                + "reordered %d, corrupted %d",
+                mReceived, getMissing(), mDuplicated, mReordered, mCorrupted);
+    }
+}
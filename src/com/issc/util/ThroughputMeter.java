@@ -0,0 +1,256 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measure a transfer by System.nanoTime.
+ *
+ * Completed packets could be counted from any thread. Rates are sampled
+ * periodically by the owner, each sample has the rate since previous one
+ * and the average since start. Samples and the latency histogram could be
+ * exported as CSV.
+ */
+public class ThroughputMeter {
+
+    /* one hour of samples if sampled per second */
+    private final static int SAMPLES_MAX = 3600;
+    private final static double NANOS_PER_SEC = 1000000000.0;
+
+    private AtomicLong mBytes;
+    private AtomicLong mPackets;
+    private AtomicLong mFailedBytes;
+    private AtomicLong mFailedPackets;
+    private LatencyHistogram mLatency;
+
+    private volatile boolean mRunning = false;
+    private long mStart = 0;
+    private long mEnd = 0;
+
+    /* state of previous sample, guarded by this */
+    private long mLastAt;
+    private long mLastBytes;
+    private long mLastPackets;
+    private List<Sample> mSamples;
+
+    public ThroughputMeter() {
+        mBytes = new AtomicLong(0);
+        mPackets = new AtomicLong(0);
+        mFailedBytes = new AtomicLong(0);
+        mFailedPackets = new AtomicLong(0);
+        mLatency = new LatencyHistogram();
+        mSamples = new ArrayList<Sample>();
+    }
+
+    public synchronized void start() {
+        mBytes.set(0);
+        mPackets.set(0);
+        mFailedBytes.set(0);
+        mFailedPackets.set(0);
+        mLatency.reset();
+        mSamples.clear();
+
+        mStart = System.nanoTime();
+        mEnd = 0;
+        mLastAt = mStart;
+        mLastBytes = 0;
+        mLastPackets = 0;
+        mRunning = true;
+    }
+
+    /**
+     * Stop measuring and take the last sample.
+     *
+     * @return the last sample, or null if it was not running.
+     */
+    public synchronized Sample stop() {
+        if (!mRunning) {
+            return null;
+        }
+        Sample s = sample();
+        mRunning = false;
+        mEnd = mStart + s.elapsed;
+        return s;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * A packet was delivered.
+     *
+     * @param latency nanoseconds from sending to completion, or negative
+     *        if unknown.
+     */
+    public void onDone(int bytes, long latency) {
+        if (!mRunning) {
+            return;
+        }
+        mBytes.addAndGet(bytes);
+        mPackets.incrementAndGet();
+        if (latency >= 0) {
+            mLatency.recordNanos(latency);
+        }
+    }
+
+    public void onFailed(int bytes) {
+        if (!mRunning) {
+            return;
+        }
+        mFailedBytes.addAndGet(bytes);
+        mFailedPackets.incrementAndGet();
+    }
+
+    public long getBytes() {
+        return mBytes.get();
+    }
+
+    public long getPackets() {
+        return mPackets.get();
+    }
+
+    public long getFailedBytes() {
+        return mFailedBytes.get();
+    }
+
+    public long getFailedPackets() {
+        return mFailedPackets.get();
+    }
+
+    public LatencyHistogram getLatency() {
+        return mLatency;
+    }
+
+    /**
+     * @return nanoseconds since start, or until stop if stopped.
+     */
+    public synchronized long getElapsed() {
+        if (mStart == 0) {
+            return 0;
+        }
+        return (mRunning ? System.nanoTime() : mEnd) - mStart;
+    }
+
+    /**
+     * Take a sample of rates, it is kept for exporting.
+     */
+    public synchronized Sample sample() {
+        long now = System.nanoTime();
+        Sample s = new Sample();
+        s.elapsed = now - mStart;
+        s.bytes   = mBytes.get();
+        s.packets = mPackets.get();
+        s.failed  = mFailedBytes.get();
+
+        long delta = now - mLastAt;
+        if (delta > 0) {
+            s.instBytesRate   = (s.bytes - mLastBytes) * NANOS_PER_SEC / delta;
+            s.instPacketsRate = (s.packets - mLastPackets) * NANOS_PER_SEC / delta;
+        }
+        if (s.elapsed > 0) {
+            s.avgBytesRate   = s.bytes * NANOS_PER_SEC / s.elapsed;
+            s.avgPacketsRate = s.packets * NANOS_PER_SEC / s.elapsed;
+        }
+
+        mLastAt = now;
+        mLastBytes = s.bytes;
+        mLastPackets = s.packets;
+        if (mRunning && mSamples.size() < SAMPLES_MAX) {
+            mSamples.add(s);
+        }
+        return s;
+    }
+
+    /**
+     * Export a report to file.
+     *
+     * @param notes lines of "key,value" to describe the environment, such
+     *        as the phone and parameters. Written at top of report.
+     */
+    public void writeCsv(File file, List<String> notes) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            for (String note: notes) {
+                out.println(note);
+            }
+
+            LatencyHistogram h = mLatency;
+            out.println("elapsed_ns," + getElapsed());
+            out.println("bytes," + mBytes.get());
+            out.println("packets," + mPackets.get());
+            out.println("failed_bytes," + mFailedBytes.get());
+            out.println("failed_packets," + mFailedPackets.get());
+            out.println("latency_mean_us," + h.getMean());
+            out.println("latency_p50_us," + h.getPercentile(50));
+            out.println("latency_p99_us," + h.getPercentile(99));
+            out.println("latency_max_us," + h.getMax());
+            out.println();
+
+            out.println("elapsed_ms,bytes,packets,failed_bytes,"
+                    + "inst_bytes_per_s,inst_packets_per_s,"
+                    + "avg_bytes_per_s,avg_packets_per_s");
+            synchronized(this) {
+                for (Sample s: mSamples) {
+                    out.println(s.toCsv());
+                }
+            }
+            out.println();
+
+            h.writeCsv(out);
+            if (out.checkError()) {
+                throw new IOException("writing " + file.getPath() + " failed");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static class Sample {
+        /* nanoseconds since start */
+        public long elapsed;
+        public long bytes;
+        public long packets;
+        public long failed;
+        /* per second, since previous sample */
+        public double instBytesRate;
+        public double instPacketsRate;
+        /* per second, since start */
+        public double avgBytesRate;
+        public double avgPacketsRate;
+
+        String toCsv() {
+            return String.format(Locale.US, "%.3f,%d,%d,%d,%.1f,%.1f,%.1f,%.1f",
+                    elapsed / 1000000.0, bytes, packets, failed,
+                    instBytesRate, instPacketsRate,
+                    avgBytesRate, avgPacketsRate);
+        }
+    }
+}
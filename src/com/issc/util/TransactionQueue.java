@@ -22,29 +22,159 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 
+/**
+ * A queue to serialize transactions to a Consumer.
+ *
+ * By default only one transaction is in flight at a time. A larger window
+ * could be set by {@link #setWindowSize}, then pipelined transactions will be
+ * handed to Consumer without waiting for previous ones. Each
+ * {@link #onConsumed} returns one credit to the window. Transactions that are
+ * not pipelined always run alone, as if the window size is 1.
+ *
+ * A transaction with a coalescing key replaces the pending one with the same
+ * key in place, so only the latest value is transacted.
+ *
+ * Transactions are kept in lanes by their priority. Higher lane is served
+ * first, but each lane only has limited turns before lower lanes get theirs,
+ * so bulk transfer still makes progress under heavy control traffic.
+ * A transaction which misses its deadline is dropped before transacting.
+ *
+ * A transaction without its own timeout waits at most the response timeout
+ * of the queue. If it times out, or Consumer reports it by
+ * {@link #onFailed}, it is transacted again after a backoff which doubles on
+ * each attempt, until the retry limit. The pipelined ones taken after a
+ * failed pipelined transaction are taken back and transacted again behind
+ * it, and nothing else is transacted while a retry is waiting, so the order
+ * is kept. A watchdog recovers the queue if the oldest in-flight transaction
+ * is stuck anyway.
+ *
+ * {@link #add} never blocks. Each lane has a bounded lock-free ring that any
+ * thread could publish to, and only the queue thread drains. If a ring is
+ * full the transaction goes to a locked overflow list, so nothing is lost.
+ * Wakeups of the queue thread are coalesced, and Consumer is called without
+ * holding any lock of the queue.
+ */
 public class TransactionQueue {
 
+    /** The largest window that could be set. */
+    public final static int WINDOW_MAX = 16;
+
+    /** Default time to wait for a response, in milliseconds. */
+    public final static long RESPONSE_TIMEOUT = 3000;
+    /** Default times to transact a failed transaction again. */
+    public final static int RETRY_MAX = 3;
+
+    private final static long BACKOFF_BASE = 50;
+    private final static long BACKOFF_MAX  = 2000;
+    private final static long WATCHDOG_PERIOD = 1000;
+
+    /* slots of each ring, must be power of 2 */
+    private final static int RING_SIZE = 128;
+
     private Consumer mConsumer;
+    private GiveUpListener mGiveUpListener;
+    private TimeoutListener mTimeoutListener;
+
+    /* null once destroyed */
+    private volatile Handler mHandler;
+
+    /* how many transactions a lane could transact in one round,
+     * indexed by priority */
+    private final static int[] LANE_WEIGHT = {8, 4, 1};
+    private final static int LANES = LANE_WEIGHT.length;
+
+    /* producers publish to rings, the queue thread moves them to lanes */
+    private Ring[] mRings;
+    private AtomicInteger mPending;
+    private AtomicBoolean mWakeup;
+
+    /* following fields are guarded by mLock */
+    private Object mLock;
+    private ArrayDeque<Transaction>[] mLanes;
+    private int[] mLaneCredit;
+    private long mExpired = 0;
+
+    /* coalescing key -> the latest transaction of the key. The key also
+     * has one placeholder in lanes to keep its position. */
+    private ConcurrentMap<Object, Transaction> mLatest;
+    private AtomicLong mCoalesced;
+
+    /* in-flight transactions, circular and the oldest one is at head */
+    private Transaction[] mFlight;
+    private int mFlightHead  = 0;
+    private int mFlightCount = 0;
+    private int mWindow = 1;
+
+    /* which attempt and when, for each in-flight transaction */
+    private int[]  mFlightAttempt;
+    private long[] mFlightSince;
 
-    private Handler mHandler;
+    /* failed transactions waiting for their backoff, circular */
+    private Transaction[] mRetry;
+    private int[]  mRetryAttempt;
+    private long[] mRetryAt;
+    private int mRetryHead  = 0;
+    private int mRetryCount = 0;
 
-    private ArrayDeque<Transaction> mQueue;
-    private Transaction mWorkingTransaction;
+    private long mResponseTimeout = RESPONSE_TIMEOUT;
+    private long mStallTimeout    = RESPONSE_TIMEOUT * 2;
+    private int  mRetryMax = RETRY_MAX;
+    private boolean mWatching = false;
+    private boolean mIdleSuspect = false;
+
+    private long mTimeouts = 0;
+    private long mRetries  = 0;
+    private long mFailures = 0;
+    private long mStalls   = 0;
+
+    /* to know how full the window stays */
+    private long mLastChange = 0;
+    private long mBusyTime   = 0;
+    private long mFillTime   = 0;
+    private int  mMaxInFlight = 0;
 
     private final static int TRANSACTION_DONE = 0x9527;
     private final static int REQUEST_CONSUME  = 0x9528;
+    private final static int RESPONSE_EXPIRED = 0x9529;
+    private final static int WATCHDOG = 0x952A;
+    private final static int RETRY_DUE = 0x952B;
 
     public TransactionQueue(Consumer consumer) {
         HandlerThread thread = new HandlerThread("TransactionQueue");
         thread.start();
         mHandler = new QueueHandler(thread.getLooper());
-        mQueue = new ArrayDeque<Transaction>();
+        mLock = new Object();
+        mRings = new Ring[LANES];
+        mLanes = newLanes(LANES);
+        mLaneCredit = new int[LANES];
+        for (int i = 0; i < LANES; i++) {
+            mRings[i] = new Ring(RING_SIZE);
+            mLanes[i] = new ArrayDeque<Transaction>();
+            mLaneCredit[i] = LANE_WEIGHT[i];
+        }
+        mPending = new AtomicInteger(0);
+        mWakeup = new AtomicBoolean(false);
+        mLatest = new ConcurrentHashMap<Object, Transaction>();
+        mCoalesced = new AtomicLong(0);
+        mFlight = new Transaction[WINDOW_MAX];
+        mFlightAttempt = new int[WINDOW_MAX];
+        mFlightSince = new long[WINDOW_MAX];
+        mRetry = new Transaction[WINDOW_MAX];
+        mRetryAttempt = new int[WINDOW_MAX];
+        mRetryAt = new long[WINDOW_MAX];
         mConsumer = consumer;
     }
 
@@ -53,16 +183,117 @@ public class TransactionQueue {
         process();
     }
 
+    /**
+     * Set how many pipelined transactions could be in flight at the same time.
+     */
+    public void setWindowSize(int size) {
+        synchronized(mLock) {
+            mWindow = Math.max(1, Math.min(size, WINDOW_MAX));
+        }
+        process();
+    }
+
+    public int getWindowSize() {
+        synchronized(mLock) {
+            return mWindow;
+        }
+    }
+
+    /**
+     * Set how long to wait for a transaction which has no timeout of its own.
+     * TIMEOUT_NONE to wait forever.
+     */
+    public void setResponseTimeout(long ms) {
+        synchronized(mLock) {
+            mResponseTimeout = ms;
+        }
+    }
+
+    /**
+     * Set how many times a failed transaction could be transacted again.
+     */
+    public void setRetryMax(int max) {
+        synchronized(mLock) {
+            mRetryMax = Math.max(0, max);
+        }
+    }
+
+    /**
+     * Set how long the oldest in-flight transaction could stay before
+     * the watchdog gives it up.
+     */
+    public void setStallTimeout(long ms) {
+        synchronized(mLock) {
+            mStallTimeout = ms;
+        }
+    }
+
+    /**
+     * Set a listener to know which transaction is given up after all
+     * retries. It is called without holding any lock of the queue.
+     */
+    public void setGiveUpListener(GiveUpListener listener) {
+        synchronized(mLock) {
+            mGiveUpListener = listener;
+        }
+    }
+
+    /**
+     * Set a listener to know which in-flight transaction is no longer
+     * waited by the queue itself, such as no response in time or stuck.
+     * A response of it which comes later should be ignored. It is called
+     * without holding any lock of the queue.
+     */
+    public void setTimeoutListener(TimeoutListener listener) {
+        synchronized(mLock) {
+            mTimeoutListener = listener;
+        }
+    }
+
     public int size() {
-        synchronized(mQueue) {
-            return mQueue.size();
+        synchronized(mLock) {
+            // waiting for retry is pending as well
+            return mPending.get() + mRetryCount;
+        }
+    }
+
+    /**
+     * @return the number of transactions that were handed to Consumer but
+     *         not consumed yet.
+     */
+    public int inFlight() {
+        synchronized(mLock) {
+            return mFlightCount;
+        }
+    }
+
+    /**
+     * @return true if the transaction was handed to Consumer and is not
+     *         consumed, failed or cleared yet.
+     */
+    public boolean isInFlight(Transaction t) {
+        synchronized(mLock) {
+            for (int i = 0; i < mFlightCount; i++) {
+                if (mFlight[(mFlightHead + i) % WINDOW_MAX] == t) {
+                    return true;
+                }
+            }
+            return false;
         }
     }
 
     public void clear() {
-        synchronized(mQueue) {
-            mQueue.clear();
-            mWorkingTransaction = null;
+        synchronized(mLock) {
+            drainRings();
+            int removed = 0;
+            for (int i = 0; i < LANES; i++) {
+                removed += mLanes[i].size();
+                mLanes[i].clear();
+            }
+            mPending.addAndGet(-removed);
+            mLatest.clear();
+            clearFlight();
+            clearRetry();
         }
     }
 
@@ -70,43 +301,568 @@ public class TransactionQueue {
         requestConsume();
     }
 
-    public void onConsumed() {
-        doneTransaction(0);
+    /**
+     * Consumer should call this once it finished a transaction.
+     *
+     * @return the oldest in-flight transaction which is done now, or null
+     *         if there is nothing in flight.
+     */
+    public Transaction onConsumed() {
+        Transaction done;
+        synchronized(mLock) {
+            done = releaseFlight();
+        }
+
+        forget(done);
+        // finish one, request next transaction
+        requestConsume();
+        return done;
+    }
+
+    /**
+     * Consumer should call this once it finished the transaction, if
+     * responses might not come in order, such as pipelined ones.
+     *
+     * @return false if it is not in flight, such as timed out already.
+     */
+    public boolean onConsumed(Transaction t) {
+        boolean released;
+        synchronized(mLock) {
+            released = releaseFlight(t);
+        }
+
+        if (released) {
+            forget(t);
+        }
+        requestConsume();
+        return released;
+    }
+
+    /**
+     * Consumer should call this if it failed the oldest in-flight transaction,
+     * such as a bad status or the request was refused. It will be transacted
+     * again later if it does not run out of retries.
+     *
+     * @return the failed transaction, or null if there is nothing in flight.
+     */
+    public Transaction onFailed() {
+        Transaction failed;
+        synchronized(mLock) {
+            failed = mFlightCount == 0 ? null : mFlight[mFlightHead];
+        }
+
+        if (failed != null) {
+            onFailed(failed);
+        } else {
+            requestConsume();
+        }
+        return failed;
+    }
+
+    /**
+     * Consumer should call this if it failed the transaction. Same as
+     * onFailed() but for the given one rather than the oldest.
+     *
+     * @return false if it is not in flight, such as timed out already.
+     */
+    public boolean onFailed(Transaction t) {
+        boolean inFlight;
+        boolean givenUp = false;
+        synchronized(mLock) {
+            inFlight = indexOfFlight(t) >= 0;
+            if (inFlight) {
+                givenUp = retryOrDrop(t);
+            }
+        }
+
+        if (inFlight) {
+            forget(t);
+        }
+        if (givenUp) {
+            notifyGiveUp(t);
+        }
+        requestConsume();
+        return inFlight;
+    }
+
+    /**
+     * @return average ratio of the window in use while there is any
+     *         transaction in flight. 1.0 means the window is always full.
+     */
+    public float getWindowUsage() {
+        synchronized(mLock) {
+            updateUsage();
+            if (mBusyTime == 0) {
+                return 0f;
+            }
+            return ((float)mFillTime) / ((float)mBusyTime * mWindow);
+        }
+    }
+
+    public int getMaxInFlight() {
+        synchronized(mLock) {
+            return mMaxInFlight;
+        }
+    }
+
+    /**
+     * @return how many transactions were replaced by a newer one
+     *         before being transacted.
+     */
+    public long getCoalescedCount() {
+        return mCoalesced.get();
+    }
+
+    /**
+     * @return how many transactions were dropped since they missed
+     *         their deadlines.
+     */
+    public long getExpiredCount() {
+        synchronized(mLock) {
+            return mExpired;
+        }
+    }
+
+    /**
+     * @return how many transactions got no response in time.
+     */
+    public long getTimeoutCount() {
+        synchronized(mLock) {
+            return mTimeouts;
+        }
+    }
+
+    /**
+     * @return how many times a failed transaction was transacted again.
+     */
+    public long getRetryCount() {
+        synchronized(mLock) {
+            return mRetries;
+        }
+    }
+
+    /**
+     * @return how many transactions were given up after all retries.
+     */
+    public long getFailedCount() {
+        synchronized(mLock) {
+            return mFailures;
+        }
+    }
+
+    /**
+     * @return how many times the watchdog found the queue stuck.
+     */
+    public long getStallCount() {
+        synchronized(mLock) {
+            return mStalls;
+        }
+    }
+
+    public void resetStats() {
+        synchronized(mLock) {
+            mLastChange = System.nanoTime();
+            mBusyTime = 0;
+            mFillTime = 0;
+            mMaxInFlight = mFlightCount;
+            mTimeouts = 0;
+            mRetries  = 0;
+            mFailures = 0;
+            mStalls   = 0;
+        }
     }
 
     public void destroy() {
         clear();
-        mHandler.removeCallbacksAndMessages(null);
+        Handler handler = mHandler;
         mHandler = null;
+        if (handler != null) {
+            handler.removeCallbacksAndMessages(null);
+            handler.getLooper().quit();
+        }
         mConsumer = null;
     }
 
+    /* stop waiting for the transaction, it is out of flight */
+    private void forget(Transaction t) {
+        Handler handler = mHandler;
+        if (t != null && handler != null) {
+            handler.removeMessages(TRANSACTION_DONE, t);
+            handler.removeMessages(RESPONSE_EXPIRED, t);
+        }
+    }
+
+    /* arrays of a generic type could not be created directly */
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<Transaction>[] newLanes(int n) {
+        return (ArrayDeque<Transaction>[])new ArrayDeque<?>[n];
+    }
+
+    /* could be called by any thread without lock */
     private void addTransaction(Transaction trans) {
-        synchronized(mQueue) {
-            mQueue.add(trans);
+        Object key = trans.getCoalesceKey();
+        if (key != null && mLatest.put(key, trans) != null) {
+            // the pending one is still in queue, it will pick
+            // up this transaction when it is polled.
+            mCoalesced.incrementAndGet();
+            return;
         }
+        mPending.incrementAndGet();
+        mRings[laneOf(trans)].offer(trans);
     }
 
+    /* only the first request since last wakeup posts a message */
     private void requestConsume() {
-        mHandler.removeMessages(REQUEST_CONSUME);
+        Handler handler = mHandler;
+        if (handler != null && mWakeup.compareAndSet(false, true)) {
+            handler.sendEmptyMessage(REQUEST_CONSUME);
+        }
+    }
+
+    private void notifyGiveUp(Transaction t) {
+        GiveUpListener listener;
+        synchronized(mLock) {
+            listener = mGiveUpListener;
+        }
 
-        Message msg = mHandler.obtainMessage(REQUEST_CONSUME);
-        msg.what = REQUEST_CONSUME;
-        mHandler.sendMessage(msg);
+        if (listener != null) {
+            listener.onGiveUp(t);
+        }
     }
 
-    private void doneTransaction(long ms) {
-        mHandler.removeMessages(TRANSACTION_DONE);
-        Message msg = mHandler.obtainMessage(TRANSACTION_DONE);
-        msg.what = TRANSACTION_DONE;
+    private void notifyTimeout(Transaction t) {
+        TimeoutListener listener;
+        synchronized(mLock) {
+            listener = mTimeoutListener;
+        }
 
-        if (ms > 0) {
-            mHandler.sendMessageDelayed(msg, ms);
-        } else {
-            mHandler.sendMessage(msg);
+        if (listener != null) {
+            listener.onTimeout(t);
+        }
+    }
+
+    /* following ones do nothing once destroyed */
+
+    private void doneTransaction(Transaction t, long ms) {
+        Handler handler = mHandler;
+        if (handler != null) {
+            Message msg = handler.obtainMessage(TRANSACTION_DONE, t);
+            msg.what = TRANSACTION_DONE;
+            handler.sendMessageDelayed(msg, ms);
+        }
+    }
+
+    private void expectResponse(Transaction t, long ms) {
+        Handler handler = mHandler;
+        if (handler != null) {
+            Message msg = handler.obtainMessage(RESPONSE_EXPIRED, t);
+            msg.what = RESPONSE_EXPIRED;
+            handler.sendMessageDelayed(msg, ms);
+        }
+    }
+
+    private void requestConsumeAt(long uptime) {
+        Handler handler = mHandler;
+        if (handler != null) {
+            handler.removeMessages(RETRY_DUE);
+            handler.sendEmptyMessageAtTime(RETRY_DUE, uptime);
+        }
+    }
+
+    private void watch() {
+        Handler handler = mHandler;
+        if (!mWatching && handler != null) {
+            mWatching = true;
+            handler.sendEmptyMessageDelayed(WATCHDOG, WATCHDOG_PERIOD);
+        }
+    }
+
+    /* following functions should be called with mLock held */
+
+    /* the lock holder is the only consumer of rings */
+    private void drainRings() {
+        for (int i = 0; i < LANES; i++) {
+            Transaction t = mRings[i].poll();
+            while (t != null) {
+                mLanes[i].add(t);
+                t = mRings[i].poll();
+            }
         }
     }
 
+    /* pick one to transact and mark it in flight, or null if nothing could
+     * be transacted now. */
+    private Transaction takeTransaction() {
+        drainRings();
+        if (mRetryCount > 0) {
+            return takeRetry();
+        }
+
+        while (true) {
+            int lane = pickLane();
+            if (lane < 0) {
+                return null;
+            }
+
+            Transaction next = nextTransaction(lane);
+            if (next == null) {
+                // all of them are stale, pick again
+                continue;
+            } else if (!hasCredit(next)) {
+                return null;
+            }
+
+            pollTransaction(lane, next);
+            mLaneCredit[lane]--;
+            Log.d("ask consumer to transact one transaction, lane=" + lane
+                    + ", in flight=" + mFlightCount);
+            prepare(next, 0);
+            return next;
+        }
+    }
+
+    /* take the oldest failed one, or null if it must wait */
+    private Transaction takeRetry() {
+        Transaction t = mRetry[mRetryHead];
+        long at = mRetryAt[mRetryHead];
+        if (at > SystemClock.uptimeMillis()) {
+            requestConsumeAt(at);
+            return null;
+        } else if (!hasCredit(t)) {
+            return null;
+        }
+
+        int attempt = mRetryAttempt[mRetryHead];
+        mRetry[mRetryHead] = null;
+        mRetryHead = (mRetryHead + 1) % WINDOW_MAX;
+        mRetryCount--;
+
+        mRetries++;
+        Log.d("transact again, attempt=" + attempt);
+        prepare(t, attempt);
+        return t;
+    }
+
+    private void prepare(Transaction t, int attempt) {
+        pushFlight(t, attempt);
+
+        long timeout = t.getTimeout();
+        if (timeout != Transaction.TIMEOUT_NONE) {
+            // this request will not cause onConsumed although
+            // it already complete the transaction.
+            // we need request next transaction manually.
+            doneTransaction(t, timeout);
+        } else if (mResponseTimeout != Transaction.TIMEOUT_NONE) {
+            expectResponse(t, mResponseTimeout);
+        }
+
+        watch();
+    }
+
+    private static int laneOf(Transaction t) {
+        int priority = t.getPriority();
+        return Math.max(0, Math.min(priority, LANES - 1));
+    }
+
+    /* pick a non-empty lane which still has credit in this round */
+    private int pickLane() {
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < LANES; i++) {
+                if (mLaneCredit[i] > 0 && !mLanes[i].isEmpty()) {
+                    return i;
+                }
+            }
+
+            // every waiting lane used up its turns, start a new round
+            for (int i = 0; i < LANES; i++) {
+                mLaneCredit[i] = LANE_WEIGHT[i];
+            }
+        }
+        return -1;
+    }
+
+    private Transaction peekTransaction(int lane) {
+        Transaction head = mLanes[lane].peek();
+        if (head == null || head.getCoalesceKey() == null) {
+            return head;
+        }
+        Transaction latest = mLatest.get(head.getCoalesceKey());
+        return (latest != null) ? latest : head;
+    }
+
+    /* the polled one is the peeked transaction of the lane */
+    private void pollTransaction(int lane, Transaction polled) {
+        Transaction head = mLanes[lane].poll();
+        mPending.decrementAndGet();
+        Object key = head.getCoalesceKey();
+        if (key != null && !mLatest.remove(key, polled)) {
+            Transaction newer = mLatest.get(key);
+            if (newer != null) {
+                // replaced after being peeked, it needs a placeholder
+                mPending.incrementAndGet();
+                mLanes[laneOf(newer)].add(newer);
+            }
+        }
+    }
+
+    /* drop stale transactions, and return the next one to transact */
+    private Transaction nextTransaction(int lane) {
+        long now = SystemClock.uptimeMillis();
+        Transaction next = peekTransaction(lane);
+        while (next != null) {
+            long deadline = next.getDeadline();
+            if (deadline == Transaction.DEADLINE_NONE || deadline >= now) {
+                break;
+            }
+
+            mExpired++;
+            pollTransaction(lane, next);
+            next = peekTransaction(lane);
+        }
+        return next;
+    }
+
+    private boolean hasCredit(Transaction next) {
+        if (mFlightCount == 0) {
+            return true;
+        }
+
+        if (!next.isPipelined() || !mFlight[mFlightHead].isPipelined()) {
+            // one of them has to run alone
+            return false;
+        }
+
+        return mFlightCount < mWindow;
+    }
+
+    private void pushFlight(Transaction t, int attempt) {
+        updateUsage();
+        int idx = (mFlightHead + mFlightCount) % WINDOW_MAX;
+        mFlight[idx] = t;
+        mFlightAttempt[idx] = attempt;
+        mFlightSince[idx] = SystemClock.uptimeMillis();
+        mFlightCount++;
+        mMaxInFlight = Math.max(mMaxInFlight, mFlightCount);
+    }
+
+    private Transaction releaseFlight() {
+        if (mFlightCount == 0) {
+            return null;
+        }
+
+        updateUsage();
+        Transaction t = mFlight[mFlightHead];
+        mFlight[mFlightHead] = null;
+        mFlightHead = (mFlightHead + 1) % WINDOW_MAX;
+        mFlightCount--;
+        return t;
+    }
+
+    /* the transaction might be done already, it is fine. */
+    private boolean releaseFlight(Transaction t) {
+        return releaseFlight(indexOfFlight(t)) != -1;
+    }
+
+    private int indexOfFlight(Transaction t) {
+        for (int i = 0; i < mFlightCount; i++) {
+            if (mFlight[(mFlightHead + i) % WINDOW_MAX] == t) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /* release the i-th in-flight transaction, return its attempt */
+    private int releaseFlight(int i) {
+        if (i < 0) {
+            return -1;
+        }
+
+        updateUsage();
+        int attempt = mFlightAttempt[(mFlightHead + i) % WINDOW_MAX];
+        // shift newer ones to fill the hole
+        for (int j = i; j < mFlightCount - 1; j++) {
+            int to   = (mFlightHead + j) % WINDOW_MAX;
+            int from = (mFlightHead + j + 1) % WINDOW_MAX;
+            mFlight[to] = mFlight[from];
+            mFlightAttempt[to] = mFlightAttempt[from];
+            mFlightSince[to] = mFlightSince[from];
+        }
+        mFlightCount--;
+        mFlight[(mFlightHead + mFlightCount) % WINDOW_MAX] = null;
+        return attempt;
+    }
+
+    /* take an in-flight transaction out, wait for next attempt if any.
+     * return true if it is given up. */
+    private boolean retryOrDrop(Transaction t) {
+        int i = indexOfFlight(t);
+        int attempt = releaseFlight(i);
+        if (attempt < 0) {
+            return false;
+        }
+
+        if (attempt >= mRetryMax) {
+            mFailures++;
+            Log.w("give up transaction after " + (attempt + 1) + " attempts");
+            return true;
+        }
+
+        long backoff = Math.min(BACKOFF_BASE << attempt, BACKOFF_MAX);
+        long at = SystemClock.uptimeMillis() + backoff;
+        pushRetry(t, attempt + 1, at);
+
+        // the rest of a pipelined window was taken after it, take them back
+        // so they are transacted again behind it, in the same order.
+        while (t.isPipelined() && mFlightCount > i) {
+            Transaction later = mFlight[(mFlightHead + i) % WINDOW_MAX];
+            forget(later);
+            pushRetry(later, releaseFlight(i), at);
+        }
+        Log.d("retry transaction in " + backoff + " ms");
+        return false;
+    }
+
+    private void pushRetry(Transaction t, int attempt, long at) {
+        int idx = (mRetryHead + mRetryCount) % WINDOW_MAX;
+        mRetry[idx] = t;
+        mRetryAttempt[idx] = attempt;
+        mRetryAt[idx] = at;
+        mRetryCount++;
+    }
+
+    private void clearRetry() {
+        for (int i = 0; i < WINDOW_MAX; i++) {
+            mRetry[i] = null;
+        }
+        mRetryHead  = 0;
+        mRetryCount = 0;
+    }
+
+    private void clearFlight() {
+        updateUsage();
+        for (int i = 0; i < WINDOW_MAX; i++) {
+            mFlight[i] = null;
+        }
+        mFlightHead  = 0;
+        mFlightCount = 0;
+        Handler handler = mHandler;
+        if (handler != null) {
+            handler.removeMessages(TRANSACTION_DONE);
+            handler.removeMessages(RESPONSE_EXPIRED);
+        }
+    }
+
+    private void updateUsage() {
+        long now = System.nanoTime();
+        if (mFlightCount > 0) {
+            long delta = now - mLastChange;
+            mBusyTime += delta;
+            mFillTime += delta * mFlightCount;
+        }
+        mLastChange = now;
+    }
+
     class QueueHandler extends Handler {
         QueueHandler(Looper looper) {
             super(looper);
@@ -115,53 +871,230 @@ public class TransactionQueue {
         public void handleMessage(Message msg) {
             int tag = msg.what;
             if (tag == REQUEST_CONSUME) {
+                // requests after this point need another wakeup
+                mWakeup.set(false);
+                onRequestConsume();
+            } else if (tag == RETRY_DUE) {
                 onRequestConsume();
             } else if (tag == TRANSACTION_DONE) {
-                onWorkingTransactionDone();
+                onTransactionTimeout((Transaction)msg.obj);
+            } else if (tag == RESPONSE_EXPIRED) {
+                onResponseTimeout((Transaction)msg.obj);
+            } else if (tag == WATCHDOG) {
+                onWatchdog();
             }
         }
 
         private void onRequestConsume() {
-            synchronized(mQueue) {
-                if (mWorkingTransaction != null) {
-                    // there is already an ongoing transaction
+            while (true) {
+                Transaction next;
+                synchronized(mLock) {
+                    next = takeTransaction();
+                }
+
+                Consumer<Transaction> consumer = mConsumer;
+                if (next == null || consumer == null) {
+                    break;
+                }
+                // no lock is held while consumer is working on it
+                consumer.onTransact(next);
+            }
+        }
+
+        private void onResponseTimeout(Transaction t) {
+            boolean givenUp;
+            synchronized(mLock) {
+                if (indexOfFlight(t) < 0) {
                     return;
                 }
+                mTimeouts++;
+                Log.w("no response in " + mResponseTimeout + " ms");
+                givenUp = retryOrDrop(t);
+            }
 
-                mWorkingTransaction = mQueue.poll();
-                if (mWorkingTransaction != null) {
-                    long timeout = mWorkingTransaction.getTimeout();
-                    if (timeout != Transaction.TIMEOUT_NONE) {
-                        // this request will not cause onConsumed although
-                        // it already complete the transaction.
-                        // we need request next transaction manually.
-                        doneTransaction(timeout);
+            notifyTimeout(t);
+            if (givenUp) {
+                notifyGiveUp(t);
+            }
+            requestConsume();
+        }
+
+        /* keep checking while there is anything to do */
+        private void onWatchdog() {
+            Transaction stuck = null;
+            Transaction givenUp = null;
+            synchronized(mLock) {
+                mWatching = false;
+                long now = SystemClock.uptimeMillis();
+                if (mFlightCount > 0) {
+                    long age = now - mFlightSince[mFlightHead];
+                    if (mStallTimeout != Transaction.TIMEOUT_NONE
+                            && age > mStallTimeout) {
+                        // the response is lost and nothing catches it
+                        mStalls++;
+                        Log.w("transaction stuck for " + age + " ms, recover");
+                        stuck = mFlight[mFlightHead];
+                        removeMessages(TRANSACTION_DONE, stuck);
+                        removeMessages(RESPONSE_EXPIRED, stuck);
+                        if (retryOrDrop(stuck)) {
+                            givenUp = stuck;
+                        }
+                        requestConsume();
                     }
+                } else if (size() > 0 && !mWakeup.get()
+                        && !hasMessages(RETRY_DUE)) {
+                    // something to do but no one is working on it, a
+                    // producer might be in the middle of add() though.
+                    if (mIdleSuspect) {
+                        mStalls++;
+                        Log.w("queue is idle with pending transactions, recover");
+                        requestConsume();
+                    }
+                    mIdleSuspect = !mIdleSuspect;
+                } else {
+                    mIdleSuspect = false;
+                }
+
+                if (mFlightCount > 0 || size() > 0) {
+                    watch();
+                }
+            }
+
+            if (stuck != null) {
+                notifyTimeout(stuck);
+            }
+            if (givenUp != null) {
+                notifyGiveUp(givenUp);
+            }
+        }
 
-                    // found transaction
-                    Log.d("ask consumer to transact one transaction, pending=" + mQueue.size());
-                    mConsumer.onTransact(mWorkingTransaction);
+        private void onTransactionTimeout(Transaction t) {
+            boolean released;
+            synchronized(mLock) {
+                released = releaseFlight(t);
+            }
+
+            if (released) {
+                // done by its own timeout, a late response means nothing
+                notifyTimeout(t);
+                // finish one, request next transaction
+                requestConsume();
+            }
+        }
+    }
+
+    /**
+     * Bounded ring of many producers and one consumer. A producer claims a
+     * slot by moving the tail, then publishes to it. The consumer takes
+     * published slots in order and frees them by moving the head.
+     */
+    private static class Ring {
+        private final AtomicReferenceArray<Transaction> mSlots;
+        private final int mMask;
+        private final AtomicLong mHead = new AtomicLong(0);
+        private final AtomicLong mTail = new AtomicLong(0);
+
+        /* used once the ring is full, until the consumer drains it */
+        private final ArrayDeque<Transaction> mOverflow
+            = new ArrayDeque<Transaction>();
+        private final AtomicInteger mSpilled = new AtomicInteger(0);
+
+        Ring(int size) {
+            mSlots = new AtomicReferenceArray<Transaction>(size);
+            mMask = size - 1;
+        }
+
+        void offer(Transaction t) {
+            // keep the order, do not pass spilled ones
+            while (mSpilled.get() == 0) {
+                long tail = mTail.get();
+                if (tail - mHead.get() > mMask) {
+                    break;
+                }
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    mSlots.set((int)tail & mMask, t);
+                    return;
                 }
             }
+
+            synchronized(mOverflow) {
+                mOverflow.add(t);
+                mSpilled.incrementAndGet();
+            }
         }
 
-        private void onWorkingTransactionDone() {
-            synchronized(mQueue) {
-                mWorkingTransaction = null;
+        /* only one thread could poll at a time */
+        Transaction poll() {
+            long head = mHead.get();
+            int idx = (int)head & mMask;
+            Transaction t = mSlots.get(idx);
+            if (t != null) {
+                mSlots.set(idx, null);
+                mHead.set(head + 1);
+                return t;
             }
-            // finish one, request next transaction
-            requestConsume();
+
+            // a claimed slot might be not published yet
+            if (mSpilled.get() > 0 && mTail.get() == head) {
+                synchronized(mOverflow) {
+                    t = mOverflow.poll();
+                    if (t != null) {
+                        mSpilled.decrementAndGet();
+                    }
+                }
+            }
+            return t;
         }
     }
 
     public interface Transaction {
         public final static long TIMEOUT_NONE = -999;
+        public final static long DEADLINE_NONE = -999;
+
+        /** such as enabling notification or commands, served first */
+        public final static int PRIORITY_CONTROL     = 0;
+        /** responds to user input */
+        public final static int PRIORITY_INTERACTIVE = 1;
+        /** large transfer such as sending a file */
+        public final static int PRIORITY_BULK        = 2;
 
         public long getTimeout();
+
+        /**
+         * @return one of PRIORITY_CONTROL, PRIORITY_INTERACTIVE
+         *         and PRIORITY_BULK.
+         */
+        public int getPriority();
+
+        /**
+         * @return time in {@link SystemClock#uptimeMillis} base, after that
+         *         this transaction is useless. Or DEADLINE_NONE.
+         */
+        public long getDeadline();
+
+        /**
+         * @return true if this transaction could be in flight together
+         *         with others, such as Write-Without-Response.
+         */
+        public boolean isPipelined();
+
+        /**
+         * @return a key to replace pending transaction which has the same
+         *         key, or null if this transaction should never be replaced.
+         */
+        public Object getCoalesceKey();
     }
 
     public interface Consumer<T extends Transaction> {
         public void onTransact(T transaction);
     }
 
+    public interface GiveUpListener {
+        public void onGiveUp(Transaction transaction);
+    }
+
+    public interface TimeoutListener {
+        public void onTimeout(Transaction transaction);
+    }
+
 }
@@ -54,8 +54,6 @@ public final class Util {
     private final static String TAG = Bluebit.TAG;
 
     private final static String ENCODE = "UTF-8";
-    private final static String sPREFIX = "0000";
-    private final static String sPOSTFIX = "-0000-1000-8000-00805f9b34fb";
 
     private final static Map<Integer, BtClass> sMap
                             = new HashMap<Integer, BtClass>();
@@ -122,16 +120,16 @@ public final class Util {
         }
     }
 
+    /**
+     * @param str 16-bit UUID in 4 hex digits, such as "180F".
+     * @return null if it is not.
+     */
     public static UUID uuidFromStr(String str) {
-        if (!str.matches(".{4}")) {
+        if (str.length() != 4) {
             return null;
-        } else {
-            StringBuilder sb = new StringBuilder();
-            sb.append(sPREFIX);
-            sb.append(str);
-            sb.append(sPOSTFIX);
-            return UUID.fromString(sb.toString());
         }
+        CompactUuid uuid = CompactUuid.parse(str);
+        return (uuid == null) ? null : uuid.toUuid();
     }
 
     public static void writeStrToFile(String path, CharSequence data) throws IOException {
@@ -26,13 +26,11 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
 import java.util.UUID;
 
 public class UuidMatcher {
 
-    Set<UUID> mRules;
+    UuidSet mRules;
 
     private String mPkgName;
     private String mActName;
@@ -44,7 +42,7 @@ public class UuidMatcher {
     private final static String sPOSTFIX = "-0000-1000-8000-00805f9b34fb";
 
     public UuidMatcher() {
-        mRules = new TreeSet<UUID>();
+        mRules = new UuidSet();
     }
 
     public void setTarget(String pkg, String act) {
@@ -78,11 +76,8 @@ public class UuidMatcher {
      *        It will be converted to 00001800-0000-1000-8000-00805f9b34fb
      */
     public boolean addShortRule(String str) {
-        if (!str.matches(".{4}")) {
-            return false;
-        } else {
-            return addRule(fromUuid16(str));
-        }
+        CompactUuid uuid = parseShort(str);
+        return (uuid != null) && mRules.add(uuid);
     }
 
     /**
@@ -92,43 +87,25 @@ public class UuidMatcher {
      *        00001800-0000-1000-8000-00805f9b34fb
      */
     public boolean addRule(String uuidStr) {
-        // regulare expression to match something like
-        // 00001800-0000-1000-8000-00805f9b34fb
-        if (!uuidStr.matches(".{8}-.{4}-.{4}-.{4}-.{12}")) {
-            return false;
-        } else {
-            return addRule(UUID.fromString(uuidStr));
-        }
+        CompactUuid uuid = parseFull(uuidStr);
+        return (uuid != null) && mRules.add(uuid);
     }
 
     /**
      * Add rule to this matcher.
      */
     public boolean addRule(UUID newRule) {
-        if (mRules.contains(newRule)) {
-            return false;
-        } else {
-            mRules.add(newRule);
-            return true;
-        }
+        return mRules.add(newRule);
     }
 
     public boolean containsShort(String str) {
-        if (!str.matches(".{4}")) {
-            return false;
-        } else {
-            return contains(fromUuid16(str));
-        }
+        CompactUuid uuid = parseShort(str);
+        return (uuid != null) && mRules.contains(uuid);
     }
 
     public boolean contains(String uuidStr) {
-        // regulare expression to match something like
-        // 00001800-0000-1000-8000-00805f9b34fb
-        if (!uuidStr.matches(".{8}-.{4}-.{4}-.{4}-.{12}")) {
-            return false;
-        } else {
-            return mRules.contains(UUID.fromString(uuidStr));
-        }
+        CompactUuid uuid = parseFull(uuidStr);
+        return (uuid != null) && mRules.contains(uuid);
     }
 
     public boolean contains(UUID target) {
@@ -141,11 +118,11 @@ public class UuidMatcher {
      * @return True if the List is exactly match this Rule.
      */
     public boolean equals(List<UUID> uuids) {
-        if (uuids.size() != mRules.size()) {
-            return false;
-        }
+        return equals(UuidSet.lookup(uuids));
+    }
 
-        return (encloses(uuids) && isEnclosedBy(uuids));
+    public boolean equals(UuidSet uuids) {
+        return uuids.sameAs(mRules);
     }
 
     /**
@@ -154,6 +131,10 @@ public class UuidMatcher {
      * @return True if each uuids of the List is enclosed by this UuidMatcher.
      */
     public boolean encloses(List<UUID> uuids) {
+        return encloses(UuidSet.lookup(uuids));
+    }
+
+    public boolean encloses(UuidSet uuids) {
         return mRules.containsAll(uuids);
     }
 
@@ -164,9 +145,27 @@ public class UuidMatcher {
      *         the List might has more Uuids than this rule.
      */
     public boolean isEnclosedBy(List<UUID> uuids) {
+        return isEnclosedBy(UuidSet.lookup(uuids));
+    }
+
+    /**
+     * Same as isEnclosedBy(List), for a set looked up once and compared
+     * with many matchers.
+     */
+    public boolean isEnclosedBy(UuidSet uuids) {
         return uuids.containsAll(mRules);
     }
 
+    /* 4 hex digits such as "1800" */
+    private static CompactUuid parseShort(String str) {
+        return (str.length() == 4) ? CompactUuid.parse(str) : null;
+    }
+
+    /* 128-bit one such as 00001800-0000-1000-8000-00805f9b34fb */
+    private static CompactUuid parseFull(String str) {
+        return (str.length() == 36) ? CompactUuid.parse(str) : null;
+    }
+
     /**
      * Expand String from uuid16 to 128-bit UUID.
      *
@@ -0,0 +1,177 @@
+// vim: et sw=4 sts=4 tabstop=4
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.issc.util;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A set of UUIDs kept as bits.
+ *
+ * Each UUID added to any set gets a small id which is shared by every set,
+ * so comparing two sets is done a word of 64 UUIDs at a time. Ids are kept
+ * in a fixed table keyed by the two longs of UUID, nothing is boxed. A set
+ * looked up by {@link #lookup} does not give ids to unknown UUIDs, it only
+ * remembers that it has some, so the table only grows by added rules.
+ */
+public final class UuidSet {
+
+    /** How many different UUIDs could be added to sets. */
+    public final static int MAX_IDS = 1024;
+
+    /* open addressing table of ids, at most half full */
+    private final static int SLOTS = MAX_IDS * 2;
+    private final static long[] sMsb = new long[SLOTS];
+    private final static long[] sLsb = new long[SLOTS];
+    private final static int[]  sIds = new int[SLOTS];    // id + 1, 0 if empty
+    private static int sCount = 0;
+
+    private long[] mWords;
+
+    /* holds UUIDs which have no id, so it is in no other set */
+    private boolean mForeign = false;
+
+    public UuidSet() {
+        mWords = new long[1];
+    }
+
+    /**
+     * @return set of the UUIDs, to be compared with sets built by add().
+     */
+    public static UuidSet lookup(List<UUID> uuids) {
+        UuidSet set = new UuidSet();
+        for (int i = 0; i < uuids.size(); i++) {
+            UUID uuid = uuids.get(i);
+            int id = idOf(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            if (id < 0) {
+                set.mForeign = true;
+            } else {
+                set.setBit(id);
+            }
+        }
+        return set;
+    }
+
+    /* slot of the UUID, or the empty one it should go */
+    private static int slotOf(long msb, long lsb) {
+        long h = msb * 31 + lsb;
+        h ^= h >>> 32;
+        h ^= h >>> 16;
+        int i = (int)h & (SLOTS - 1);
+        while (sIds[i] != 0 && (sMsb[i] != msb || sLsb[i] != lsb)) {
+            i = (i + 1) & (SLOTS - 1);
+        }
+        return i;
+    }
+
+    private static synchronized int idOf(long msb, long lsb) {
+        return sIds[slotOf(msb, lsb)] - 1;
+    }
+
+    private static synchronized int intern(long msb, long lsb) {
+        int i = slotOf(msb, lsb);
+        if (sIds[i] == 0) {
+            if (sCount >= MAX_IDS) {
+                throw new IllegalStateException("more than " + MAX_IDS + " UUIDs in sets");
+            }
+            sMsb[i] = msb;
+            sLsb[i] = lsb;
+            sIds[i] = ++sCount;
+        }
+        return sIds[i] - 1;
+    }
+
+    /**
+     * @return false if it was in the set already.
+     * @throws IllegalStateException if MAX_IDS UUIDs were added already.
+     */
+    public boolean add(UUID uuid) {
+        return add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    public boolean add(CompactUuid uuid) {
+        return add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    private boolean add(long msb, long lsb) {
+        int id = intern(msb, lsb);
+        if (getBit(id)) {
+            return false;
+        }
+        setBit(id);
+        return true;
+    }
+
+    public boolean contains(UUID uuid) {
+        return contains(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    public boolean contains(CompactUuid uuid) {
+        return contains(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    private boolean contains(long msb, long lsb) {
+        int id = idOf(msb, lsb);
+        return id >= 0 && getBit(id);
+    }
+
+    /**
+     * @return true if every UUID of the other set is in this one.
+     */
+    public boolean containsAll(UuidSet other) {
+        if (other.mForeign) {
+            return false;
+        }
+        for (int i = 0; i < other.mWords.length; i++) {
+            long mine = (i < mWords.length) ? mWords[i] : 0;
+            if ((other.mWords[i] & ~mine) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if both hold exactly the same UUIDs.
+     */
+    public boolean sameAs(UuidSet other) {
+        return !mForeign && other.containsAll(this) && containsAll(other);
+    }
+
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < mWords.length; i++) {
+            size += Long.bitCount(mWords[i]);
+        }
+        return size;
+    }
+
+    private boolean getBit(int id) {
+        int word = id >>> 6;
+        return word < mWords.length && (mWords[word] & (1L << id)) != 0;
+    }
+
+    private void setBit(int id) {
+        int word = id >>> 6;
+        if (word >= mWords.length) {
+            long[] words = new long[Math.max(word + 1, mWords.length * 2)];
+            System.arraycopy(mWords, 0, words, 0, mWords.length);
+            mWords = words;
+        }
+        mWords[word] |= 1L << id;
+    }
+}